@@ -0,0 +1,125 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.sshd.common.channel.PtyMode;
+import org.apache.sshd.server.channel.PuttyRequestHandler;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rowland.jinix.terminal.InputMode;
+import org.rowland.jinix.terminal.LocalMode;
+import org.rowland.jinix.terminal.OutputMode;
+import org.rowland.jinix.terminal.SpecialCharacter;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of mapping a client's pty modes to Jinix terminal attributes, for the mode sets sent by real clients.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PtyModeMappingBenchmark {
+
+    @Param({"openssh", "putty", "minimal"})
+    public String client;
+
+    private Map<PtyMode, Integer> modes;
+
+    @Setup
+    public void setup() {
+        switch (client) {
+            case "openssh":
+                modes = openSshModes();
+                break;
+            case "putty":
+                modes = PuttyRequestHandler.resolveShellTtyOptions(openSshModes());
+                break;
+            default:
+                modes = new EnumMap<>(PtyMode.class);
+                modes.put(PtyMode.ECHO, 1);
+                modes.put(PtyMode.ICANON, 1);
+                break;
+        }
+    }
+
+    @Benchmark
+    public void mapModes(Blackhole bh) {
+        Set<InputMode> inputModes = EnumSet.of(InputMode.ICRNL, InputMode.IXON);
+        Set<OutputMode> outputModes = EnumSet.of(OutputMode.OPOST, OutputMode.ONLCR);
+        Set<LocalMode> localModes = EnumSet.of(LocalMode.ISIG, LocalMode.ICANON, LocalMode.ECHO);
+        Map<SpecialCharacter, Byte> specialCharacters = new EnumMap<>(SpecialCharacter.class);
+
+        TerminalAttributeTemplates.mapToJinixInputModes(modes, inputModes);
+        TerminalAttributeTemplates.mapToJinixOutputModes(modes, outputModes);
+        TerminalAttributeTemplates.mapToJinixLocalModes(modes, localModes);
+        TerminalAttributeTemplates.mapJinixSpecialCharacters(modes, specialCharacters);
+
+        bh.consume(inputModes);
+        bh.consume(outputModes);
+        bh.consume(localModes);
+        bh.consume(specialCharacters);
+    }
+
+    /**
+     * The modes sent by the OpenSSH client from a Linux xterm.
+     */
+    private static Map<PtyMode, Integer> openSshModes() {
+        Map<PtyMode, Integer> modes = new EnumMap<>(PtyMode.class);
+        modes.put(PtyMode.VINTR, 3);
+        modes.put(PtyMode.VQUIT, 28);
+        modes.put(PtyMode.VERASE, 127);
+        modes.put(PtyMode.VKILL, 21);
+        modes.put(PtyMode.VEOF, 4);
+        modes.put(PtyMode.VEOL, 255);
+        modes.put(PtyMode.VEOL2, 255);
+        modes.put(PtyMode.VSTART, 17);
+        modes.put(PtyMode.VSTOP, 19);
+        modes.put(PtyMode.VSUSP, 26);
+        modes.put(PtyMode.VREPRINT, 18);
+        modes.put(PtyMode.VWERASE, 23);
+        modes.put(PtyMode.VLNEXT, 22);
+        modes.put(PtyMode.VDISCARD, 15);
+        modes.put(PtyMode.IGNPAR, 0);
+        modes.put(PtyMode.PARMRK, 0);
+        modes.put(PtyMode.INPCK, 0);
+        modes.put(PtyMode.ISTRIP, 0);
+        modes.put(PtyMode.INLCR, 0);
+        modes.put(PtyMode.IGNCR, 0);
+        modes.put(PtyMode.ICRNL, 1);
+        modes.put(PtyMode.IUCLC, 0);
+        modes.put(PtyMode.IXON, 1);
+        modes.put(PtyMode.IXANY, 0);
+        modes.put(PtyMode.IXOFF, 0);
+        modes.put(PtyMode.IMAXBEL, 0);
+        modes.put(PtyMode.IUTF8, 1);
+        modes.put(PtyMode.ISIG, 1);
+        modes.put(PtyMode.ICANON, 1);
+        modes.put(PtyMode.XCASE, 0);
+        modes.put(PtyMode.ECHO, 1);
+        modes.put(PtyMode.ECHOE, 1);
+        modes.put(PtyMode.ECHOK, 1);
+        modes.put(PtyMode.ECHONL, 0);
+        modes.put(PtyMode.NOFLSH, 0);
+        modes.put(PtyMode.TOSTOP, 0);
+        modes.put(PtyMode.IEXTEN, 1);
+        modes.put(PtyMode.ECHOCTL, 1);
+        modes.put(PtyMode.ECHOKE, 1);
+        modes.put(PtyMode.PENDIN, 0);
+        modes.put(PtyMode.OPOST, 1);
+        modes.put(PtyMode.OLCUC, 0);
+        modes.put(PtyMode.ONLCR, 1);
+        modes.put(PtyMode.OCRNL, 0);
+        modes.put(PtyMode.ONOCR, 0);
+        modes.put(PtyMode.ONLRET, 0);
+        modes.put(PtyMode.CS7, 1);
+        modes.put(PtyMode.CS8, 1);
+        modes.put(PtyMode.PARENB, 0);
+        modes.put(PtyMode.PARODD, 0);
+        modes.put(PtyMode.TTY_OP_ISPEED, 38400);
+        modes.put(PtyMode.TTY_OP_OSPEED, 38400);
+        return modes;
+    }
+}
@@ -0,0 +1,144 @@
+package org.rowland.jinix.sshd;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the shell output and input pumps over in-memory stand-ins for the terminal master and the ssh
+ * channel. Every benchmark invocation moves one megabyte and counts as one operation per byte, so throughput is
+ * reported in bytes per microsecond (MB/s) and average time in microseconds per byte.
+ *
+ * The readSize parameter is how many bytes the stand-in source hands out per read: 1 for keystroke echo, up
+ * to a full 32K for bulk output. The echo parameter sends input to the output pump before every read, so that all
+ * output is treated as echo and flushed as soon as the source is drained. Otherwise output is coalesced into
+ * full packets, as for output that does not follow input.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShellPumpBenchmark {
+
+    private static final int PAYLOAD_SIZE = 1 << 20;
+    private static final int BUFFER_SIZE = 32768;
+
+    @Param({"1", "64", "4096", "32768"})
+    public int readSize;
+
+    @Param({"false", "true"})
+    public boolean echo;
+
+    private byte[] payload;
+    private SessionMetrics metrics;
+    private CountingOutputStream sink;
+    private ScheduledExecutorService timer;
+
+    @Setup
+    public void setup() {
+        payload = new byte[PAYLOAD_SIZE];
+        new Random(0).nextBytes(payload);
+        metrics = new SessionMetrics(new SshdMetrics(), 1, "benchmark");
+        sink = new CountingOutputStream();
+        timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @TearDown
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYLOAD_SIZE)
+    public long outputPump() throws IOException {
+        ShellOutputPump pump = new ShellOutputPump(new ChunkedInputStream(payload, readSize), sink,
+                BUFFER_SIZE, BUFFER_SIZE, 20, 100, timer, Runnable::run, metrics, null, () -> false,
+                failure -> { });
+        do {
+            if (echo) {
+                pump.inputReceived();
+            }
+        } while (pump.transfer());
+        return sink.bytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYLOAD_SIZE)
+    public long inputPump() throws IOException {
+        ShellInputPump pump = new ShellInputPump(new ChunkedInputStream(payload, readSize), sink,
+                BUFFER_SIZE, metrics, () -> { }, -1, () -> { }, -1, () -> { }, failure -> { });
+        while (pump.transfer()) {
+            // keep pumping
+        }
+        return sink.bytes;
+    }
+
+    /**
+     * An input stream over a byte array that returns at most chunkSize bytes per read, like a terminal master
+     * being written to in chunks of that size.
+     */
+    static class ChunkedInputStream extends InputStream {
+
+        private final byte[] data;
+        private final int chunkSize;
+        private int position = 0;
+
+        ChunkedInputStream(byte[] data, int chunkSize) {
+            this.data = data;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public int read() {
+            return (position < data.length ? data[position++] & 0xff : -1);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= data.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(len, chunkSize), data.length - position);
+            System.arraycopy(data, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return Math.min(chunkSize, data.length - position);
+        }
+    }
+
+    /**
+     * A stand-in for the ssh channel that counts and discards what is written to it.
+     */
+    static class CountingOutputStream extends OutputStream {
+
+        long bytes = 0;
+        long flushes = 0;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+}
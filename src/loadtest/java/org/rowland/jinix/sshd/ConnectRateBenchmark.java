@@ -0,0 +1,152 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loopback connect rate benchmark for sshd's acceptors. For each acceptor count given, boots the server
+ * in-process on the loopback interface, then has a number of client threads connect, wait for the server's
+ * identification line, and disconnect, as fast as they can. That is the part of connection setup that happens
+ * before any key exchange, so the report shows how accepts scale with the acceptor count, in connections per
+ * second and connect to identification latency.
+ *
+ * Connection limits are off unless set with -o, for example -o MaxConnections=100. Run with
+ * "java -cp target/loadtest.jar org.rowland.jinix.sshd.ConnectRateBenchmark -a 1,4".
+ */
+public class ConnectRateBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("a", "acceptors", true, "comma separated acceptor counts to compare. Default is 1,4");
+        options.addOption("c", "clients", true, "number of client threads. Default is 32");
+        options.addOption("d", "duration", true, "seconds to measure each acceptor count. Default is 10");
+        options.addOption("w", "warmup", true, "seconds of unreported warm up, with the first count. Default is 5");
+        options.addOption("o", "option", true, "sshd.config setting, as name=value");
+        options.addOption("l", "logFile", true, "file for the server's log. Default is connectrate-sshd.log");
+
+        CommandLine cmdLine;
+        try {
+            cmdLine = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("ConnectRateBenchmark", options);
+            return;
+        }
+        String[] acceptorCounts = cmdLine.getOptionValue("a", "1,4").split(",");
+        int clients = Integer.parseInt(cmdLine.getOptionValue("c", "32"));
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(cmdLine.getOptionValue("d", "10")));
+        long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(cmdLine.getOptionValue("w", "5")));
+
+        Properties sshdConfig = new Properties();
+        sshdConfig.setProperty("MaxConnections", "0");
+        sshdConfig.setProperty("MaxConnectionsPerAddress", "0");
+        sshdConfig.setProperty("MaxHandshakes", "0");
+        sshdConfig.setProperty("MaxHandshakesPerAddress", "0");
+        sshdConfig.setProperty("MetricsLogInterval", "0");
+        sshdConfig.setProperty("HostKey",
+                Files.createTempDirectory("connectrate").resolve("ssh_host_ed25519_key").toString());
+        if (cmdLine.hasOption("o")) {
+            for (String setting : cmdLine.getOptionValues("o")) {
+                int equals = setting.indexOf('=');
+                if (equals < 0) {
+                    System.err.println("Setting must be name=value: " + setting);
+                    return;
+                }
+                sshdConfig.setProperty(setting.substring(0, equals).trim(), setting.substring(equals + 1).trim());
+            }
+        }
+
+        PrintStream report = System.out;
+        PrintStream log = new PrintStream(new FileOutputStream(cmdLine.getOptionValue("l", "connectrate-sshd.log")), true);
+        System.setOut(log);
+        System.setErr(log);
+
+        report.println(clients + " clients, " + TimeUnit.NANOSECONDS.toSeconds(duration) + "s per run, " +
+                Runtime.getRuntime().availableProcessors() + " processors");
+        if (warmup > 0) {
+            sshdConfig.setProperty("Acceptors", acceptorCounts[0].trim());
+            run(new SshdConfig(sshdConfig), clients, warmup);
+        }
+        for (String acceptors : acceptorCounts) {
+            sshdConfig.setProperty("Acceptors", acceptors.trim());
+            report.println(run(new SshdConfig(sshdConfig), clients, duration));
+        }
+        System.exit(0);
+    }
+
+    private static String run(SshdConfig config, int clients, long duration) throws Exception {
+        Sshd.configure(config);
+        Sshd.server = Sshd.createServer(config, 0);
+        Sshd.server.setHost("127.0.0.1");
+        Sshd.server.start();
+        int port = Sshd.server.getPort();
+
+        LoadTest.Samples connectToIdentification = new LoadTest.Samples();
+        LongAdder failures = new LongAdder();
+        AtomicReference<Exception> firstFailure = new AtomicReference<>();
+        long start = System.nanoTime();
+        long end = start + duration;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Thread t = new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    long connectStart = System.nanoTime();
+                    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                        socket.setSoTimeout(10000);
+                        readLine(socket.getInputStream());
+                        connectToIdentification.add(System.nanoTime() - connectStart);
+                    } catch (IOException e) {
+                        failures.increment();
+                        firstFailure.compareAndSet(null, e);
+                    }
+                }
+            }, "Connect Client " + (i + 1));
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        String acceptors = config.getString("Acceptors", "1");
+        Sshd.stopServer();
+
+        String result = String.format("acceptors=%-3s %8.1f connections/s  connect to identification: %s",
+                acceptors, connectToIdentification.count() / (elapsed / 1e9), connectToIdentification.summary());
+        if (failures.sum() > 0) {
+            result += String.format("%n              %d failed, first failure: %s", failures.sum(), firstFailure.get());
+        }
+        return result;
+    }
+
+    /**
+     * Read up to the end of the server's identification line.
+     */
+    private static void readLine(InputStream in) throws IOException {
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed before identification");
+            }
+        }
+    }
+}
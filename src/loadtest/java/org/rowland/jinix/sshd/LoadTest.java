@@ -0,0 +1,351 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.channel.ChannelShell;
+import org.apache.sshd.client.config.hosts.HostConfigEntryResolver;
+import org.apache.sshd.client.keyverifier.AcceptAllServerKeyVerifier;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.keyprovider.KeyIdentityProvider;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load harness for sshd. Boots the server in-process on the loopback interface against the LocalJinix stand-ins,
+ * then drives it with the sshd-core client from a number of concurrent connections. Each connection logs in,
+ * opens a shell with a pty, types keystrokes one at a time, and finally asks the shell for a block of bulk
+ * output. The connections move through these steps together, and the report gives:
+ *
+ * <ul>
+ *   <li>connect to prompt latency percentiles, and logins per second while all connections log in at once</li>
+ *   <li>keystroke echo round trip percentiles</li>
+ *   <li>bulk output throughput, across all connections</li>
+ *   <li>heap and threads per open session</li>
+ * </ul>
+ *
+ * Client and server share the JVM, so the heap and thread figures include the client's share of each session,
+ * and the stand-in shell's thread. Settings from sshd.config can be given with -o, for example
+ * -o SessionIoEngine=pooled. The server's own log goes to a file.
+ */
+public class LoadTest {
+
+    private static final String USER = "loadtest";
+
+    private static int keystrokes;
+    private static long bulkBytes;
+    private static long timeout;
+
+    private static final Phaser phaser = new Phaser(1);
+    private static final Samples connectToPrompt = new Samples();
+    private static final Samples keystrokeEcho = new Samples();
+    private static final LongAdder bulkCompleted = new LongAdder();
+    private static final LongAdder failures = new LongAdder();
+    private static final AtomicReference<Exception> firstFailure = new AtomicReference<>();
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("c", "connections", true, "number of concurrent connections. Default is 50");
+        options.addOption("k", "keystrokes", true, "keystrokes typed by each connection. Default is 20");
+        options.addOption("b", "bulk", true, "bytes of bulk output read by each connection. Default is 1048576");
+        options.addOption("t", "timeout", true, "seconds to wait for any one step. Default is 60");
+        options.addOption("o", "option", true, "sshd.config setting, as name=value");
+        options.addOption("l", "logFile", true, "file for the server's log. Default is loadtest-sshd.log");
+
+        CommandLine cmdLine;
+        try {
+            cmdLine = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("LoadTest", options);
+            return;
+        }
+        int connections = Integer.parseInt(cmdLine.getOptionValue("c", "50"));
+        keystrokes = Integer.parseInt(cmdLine.getOptionValue("k", "20"));
+        bulkBytes = Long.parseLong(cmdLine.getOptionValue("b", "1048576"));
+        timeout = TimeUnit.SECONDS.toNanos(Long.parseLong(cmdLine.getOptionValue("t", "60")));
+
+        Properties sshdConfig = new Properties();
+        if (cmdLine.hasOption("o")) {
+            for (String setting : cmdLine.getOptionValues("o")) {
+                int equals = setting.indexOf('=');
+                if (equals < 0) {
+                    System.err.println("Setting must be name=value: " + setting);
+                    return;
+                }
+                sshdConfig.setProperty(setting.substring(0, equals).trim(), setting.substring(equals + 1).trim());
+            }
+        }
+
+        PrintStream report = System.out;
+        PrintStream log = new PrintStream(new FileOutputStream(cmdLine.getOptionValue("l", "loadtest-sshd.log")), true);
+        System.setOut(log);
+        System.setErr(log);
+
+        sshdConfig.putIfAbsent("PasswordAuthentication", "yes");
+        // Every connection comes from the loopback address.
+        sshdConfig.putIfAbsent("MaxConnectionsPerAddress", "0");
+        sshdConfig.putIfAbsent("MaxHandshakesPerAddress", "0");
+        if (!sshdConfig.containsKey("HostKey")) {
+            Path hostKeyDirectory = Files.createTempDirectory("loadtest");
+            sshdConfig.setProperty("HostKey", hostKeyDirectory.resolve("ssh_host_ed25519_key") + "," +
+                    hostKeyDirectory.resolve("ssh_host_ecdsa_key"));
+        }
+        SshdConfig config = new SshdConfig(sshdConfig);
+        int port = startServer(config, new LocalJinix());
+
+        SshClient client = SshClient.setUpDefaultClient();
+        client.setServerKeyVerifier(AcceptAllServerKeyVerifier.INSTANCE);
+        client.setHostConfigEntryResolver(HostConfigEntryResolver.EMPTY);
+        client.setKeyIdentityProvider(KeyIdentityProvider.EMPTY_KEYS_PROVIDER);
+        // Offer the server's algorithms in the server's order, so that its first choices are measured.
+        Sshd.algorithmPolicy.apply(client);
+        client.start();
+
+        report.println("sshd on 127.0.0.1:" + port + ", " + connections + " connections, " + keystrokes +
+                " keystrokes and " + bulkBytes + " bytes of bulk output each");
+        report.println("configuration: " + config);
+
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            phaser.register();
+            Thread t = new Thread(() -> runSession(client, port), "Load Session " + (i + 1));
+            t.setDaemon(true);
+            t.start();
+        }
+
+        // Phase 0: every connection has its prompt.
+        phaser.arriveAndAwaitAdvance();
+        long loginTime = System.nanoTime() - start;
+        int open = phaser.getRegisteredParties() - 1;
+        long heapPerSession = (open == 0 ? 0 : (usedHeap() - heapBefore) / open);
+        double threadsPerSession = (open == 0 ? 0 :
+                (ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore) / (double) open);
+
+        // Phase 1: measurements taken, start typing.
+        phaser.arriveAndAwaitAdvance();
+        // Phase 2: typing done, start the bulk output.
+        phaser.arriveAndAwaitAdvance();
+        long bulkStart = System.nanoTime();
+        int bulkSessions = phaser.getRegisteredParties() - 1;
+        // Phase 3: bulk output done.
+        phaser.arriveAndAwaitAdvance();
+        long bulkTime = System.nanoTime() - bulkStart;
+        phaser.arriveAndDeregister();
+
+        report.printf("logins:             %d of %d in %.1fms, %.1f logins/s%n", connectToPrompt.count(), connections,
+                loginTime / 1e6, connectToPrompt.count() / (loginTime / 1e9));
+        report.println("connect to prompt:  " + connectToPrompt.summary());
+        report.println("keystroke echo:     " + keystrokeEcho.summary());
+        report.printf("bulk output:        %d of %d sessions, %.1f MB/s total, %.2f MB/s per session%n",
+                bulkCompleted.sum(), bulkSessions, bulkCompleted.sum() * bulkBytes / 1e6 / (bulkTime / 1e9),
+                (bulkSessions == 0 ? 0 : bulkBytes / 1e6 / (bulkTime / 1e9)));
+        report.printf("per session:        %.1f KB heap, %.1f threads (client and server)%n",
+                heapPerSession / 1024.0, threadsPerSession);
+        report.println("server metrics:     " + Sshd.metrics.snapshot());
+        if (failures.sum() > 0) {
+            report.println("failed sessions:    " + failures.sum() + ", first failure: " + firstFailure.get());
+        }
+
+        client.stop();
+        Sshd.stopServer();
+        System.exit(failures.sum() > 0 ? 1 : 0);
+    }
+
+    /**
+     * Start sshd on an ephemeral loopback port, with the LocalJinix stand-ins in place of the Jinix servers.
+     *
+     * @return the port
+     */
+    static int startServer(SshdConfig config, LocalJinix jinix) throws IOException, GeneralSecurityException {
+        Sshd.terminalServer = jinix.termServer();
+        Sshd.execServer = jinix.execServer();
+        Sshd.processManager = jinix.processManager();
+        Sshd.shellHost = jinix;
+        Sshd.fileHost = jinix;
+
+        Sshd.configure(config);
+        Sshd.environmentCache = new EnvironmentCache(0) {
+            @Override
+            Properties createEnvironment() {
+                return new Properties();
+            }
+
+            @Override
+            long getGeneration() {
+                return 0;
+            }
+        };
+        Sshd.startShellPool(config);
+
+        Sshd.server = Sshd.createServer(config, 0);
+        Sshd.server.setHost("127.0.0.1");
+        Sshd.server.start();
+        return Sshd.server.getPort();
+    }
+
+    private static void runSession(SshClient client, int port) {
+        try {
+            long start = System.nanoTime();
+            try (ClientSession session = client.connect(USER, "127.0.0.1", port).verify(timeout, TimeUnit.NANOSECONDS).getSession()) {
+                session.addPasswordIdentity(USER);
+                session.auth().verify(timeout, TimeUnit.NANOSECONDS);
+
+                TerminalSink terminal = new TerminalSink();
+                try (ChannelShell channel = session.createShellChannel()) {
+                    channel.setPtyType("xterm");
+                    channel.setPtyColumns(80);
+                    channel.setPtyLines(24);
+                    channel.setOut(terminal);
+                    channel.setErr(terminal);
+                    channel.open().verify(timeout, TimeUnit.NANOSECONDS);
+                    OutputStream keyboard = channel.getInvertedIn();
+
+                    terminal.awaitPrompts(1);
+                    connectToPrompt.add(System.nanoTime() - start);
+                    phaser.arriveAndAwaitAdvance();
+                    phaser.arriveAndAwaitAdvance();
+
+                    for (int i = 0; i < keystrokes; i++) {
+                        long echoed = terminal.bytes() + 1;
+                        long typed = System.nanoTime();
+                        keyboard.write('a' + i % 26);
+                        keyboard.flush();
+                        terminal.awaitBytes(echoed);
+                        keystrokeEcho.add(System.nanoTime() - typed);
+                    }
+                    keyboard.write('\r');
+                    keyboard.flush();
+                    terminal.awaitPrompts(2);
+                    phaser.arriveAndAwaitAdvance();
+
+                    keyboard.write(("bulk " + bulkBytes + "\r").getBytes(StandardCharsets.US_ASCII));
+                    keyboard.flush();
+                    terminal.awaitPrompts(3);
+                    bulkCompleted.increment();
+                    phaser.arriveAndAwaitAdvance();
+                }
+            }
+        } catch (Exception e) {
+            failures.increment();
+            firstFailure.compareAndSet(null, e);
+        }
+        phaser.arriveAndDeregister();
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * The client's view of the terminal: counts the bytes received, and the prompts among them.
+     */
+    private static class TerminalSink extends OutputStream {
+
+        private static final byte PROMPT = (byte) LocalJinix.PROMPT.charAt(0);
+
+        private long bytes = 0;
+        private int prompts = 0;
+
+        @Override
+        public synchronized void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            bytes += len;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == PROMPT) {
+                    prompts++;
+                }
+            }
+            notifyAll();
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+
+        synchronized void awaitBytes(long n) throws InterruptedException, TimeoutException {
+            long deadline = System.nanoTime() + timeout;
+            while (bytes < n) {
+                await(deadline, n + " bytes");
+            }
+        }
+
+        synchronized void awaitPrompts(int n) throws InterruptedException, TimeoutException {
+            long deadline = System.nanoTime() + timeout;
+            while (prompts < n) {
+                await(deadline, "prompt " + n);
+            }
+        }
+
+        private void await(long deadline, String what) throws InterruptedException, TimeoutException {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException("Timed out waiting for " + what);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+    }
+
+    /**
+     * Latency samples, kept in full so that the percentiles are exact.
+     */
+    static class Samples {
+
+        private long[] samples = new long[1024];
+        private int count = 0;
+
+        synchronized void add(long nanos) {
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = nanos;
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        synchronized String summary() {
+            if (count == 0) {
+                return "no samples";
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return String.format("p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+                    percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                    sorted[count - 1] / 1e6);
+        }
+
+        private static double percentile(long[] sorted, double fraction) {
+            int rank = (int) Math.ceil(fraction * sorted.length);
+            return sorted[Math.max(0, rank - 1)] / 1e6;
+        }
+    }
+}
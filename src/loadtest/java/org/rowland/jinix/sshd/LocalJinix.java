@@ -0,0 +1,366 @@
+package org.rowland.jinix.sshd;
+
+import org.rowland.jinix.exec.ExecServer;
+import org.rowland.jinix.proc.ProcessManager;
+import org.rowland.jinix.terminal.InputMode;
+import org.rowland.jinix.terminal.LocalMode;
+import org.rowland.jinix.terminal.OutputMode;
+import org.rowland.jinix.terminal.SpecialCharacter;
+import org.rowland.jinix.terminal.TermServer;
+import org.rowland.jinix.terminal.TerminalAttributes;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-ins for the Jinix servers and runtime that shell sessions use, so that sshd can run without a Jinix
+ * kernel. A terminal is a pair of loopback pipes with no line discipline. A shell is a thread that echoes what
+ * it reads, and prints a new prompt at the end of each line. The line "bulk N" prints N bytes of output before
+ * the prompt.
+ *
+ * The servers are dynamic proxies, so only the calls a shell session makes need a stand-in. Any other call
+ * throws UnsupportedOperationException; exec requests use the JinixRuntime directly and are not supported. sftp
+ * and scp transfers go to local files, and each read or write of a file stream can be made to wait for a round
+ * trip, as it would to the Jinix file server.
+ */
+class LocalJinix implements ShellHost, FileHost {
+
+    static final String PROMPT = "$ ";
+
+    private static final int PIPE_SIZE = 65536;
+    private static final byte[] BULK_OUTPUT = new byte[32768];
+
+    static {
+        Arrays.fill(BULK_OUTPUT, (byte) 'x');
+    }
+
+    private final AtomicInteger nextTerminalId = new AtomicInteger();
+    private final AtomicInteger nextPid = new AtomicInteger(100);
+    private final Map<Short, LocalTerminal> terminals = new ConcurrentHashMap<>();
+    private final Map<Integer, LocalTerminal> shells = new ConcurrentHashMap<>();
+    private volatile long fileRoundTrip = 0; // nanoseconds
+
+    @FunctionalInterface
+    private interface Call {
+        Object invoke(String method, Object[] args) throws Exception;
+    }
+
+    TermServer termServer() {
+        return proxy(TermServer.class, (method, args) -> {
+            switch (method) {
+                case "createTerminal":
+                    short terminalId = (short) nextTerminalId.incrementAndGet();
+                    terminals.put(terminalId, new LocalTerminal());
+                    return terminalId;
+                case "getTerminalAttributes":
+                    return newTerminalAttributes();
+                case "setTerminalAttributes":
+                case "setTerminalSize":
+                case "linkProcessToTerminal":
+                    return null;
+                case "getTerminalForegroundProcessGroup":
+                    return terminal((Short) args[0]).shellPid;
+                default:
+                    throw new UnsupportedOperationException("TermServer." + method);
+            }
+        });
+    }
+
+    ExecServer execServer() {
+        return proxy(ExecServer.class, (method, args) -> {
+            throw new UnsupportedOperationException("ExecServer." + method);
+        });
+    }
+
+    ProcessManager processManager() {
+        return proxy(ProcessManager.class, (method, args) -> {
+            switch (method) {
+                case "setProcessTerminalId":
+                    return null;
+                case "sendSignal":
+                    ProcessManager.Signal signal = (ProcessManager.Signal) args[1];
+                    if (signal == ProcessManager.Signal.HANGUP || signal == ProcessManager.Signal.TERMINATE ||
+                            signal == ProcessManager.Signal.KILL) {
+                        LocalTerminal terminal = shells.remove((Integer) args[0]);
+                        if (terminal != null) {
+                            terminal.hangUp();
+                        }
+                    }
+                    return null;
+                default:
+                    throw new UnsupportedOperationException("ProcessManager." + method);
+            }
+        });
+    }
+
+    @Override
+    public TerminalEnd openTerminalMaster(short terminalId) {
+        LocalTerminal terminal = terminal(terminalId);
+        return new LocalTerminalEnd(terminal, terminal.output.in, terminal.input.out) {
+            @Override
+            public void close() {
+                terminal.output.closeReader();
+                terminal.input.closeWriter();
+            }
+        };
+    }
+
+    @Override
+    public TerminalEnd openTerminalSlave(short terminalId) {
+        // The shell is given its own ends of the pipes, so closing sshd's slave does nothing.
+        LocalTerminal terminal = terminal(terminalId);
+        return new LocalTerminalEnd(terminal, terminal.input.in, terminal.output.out);
+    }
+
+    @Override
+    public int execShell(Properties envProps, TerminalEnd slave) {
+        LocalTerminal terminal = ((LocalTerminalEnd) slave).terminal;
+        int pid = nextPid.incrementAndGet();
+        terminal.shellPid = pid;
+        shells.put(pid, terminal);
+        Thread shell = new Thread(terminal::runShell, "Local Shell " + pid);
+        shell.setDaemon(true);
+        shell.start();
+        return pid;
+    }
+
+    @Override
+    public void sendSignalProcessGroup(int processGroupId, ProcessManager.Signal signal) {
+        // The shell has no jobs to signal.
+    }
+
+    @Override
+    public boolean hasExited(int pid) {
+        return !shells.containsKey(pid);
+    }
+
+    /**
+     * @param micros the time each read or write of a file stream waits, as for a call to the Jinix file server
+     */
+    void setFileRoundTrip(long micros) {
+        fileRoundTrip = TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return Files.exists(Paths.get(path));
+    }
+
+    @Override
+    public long length(String path) {
+        try {
+            return Files.size(Paths.get(path));
+        } catch (IOException e) {
+            return 0; // as JinixFile.length() does for a missing file
+        }
+    }
+
+    @Override
+    public boolean delete(String path) {
+        try {
+            return Files.deleteIfExists(Paths.get(path));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean rename(String from, String to) {
+        try {
+            Files.move(Paths.get(from), Paths.get(to), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public InputStream openInput(String path) throws IOException {
+        roundTrip();
+        return new FilterInputStream(Files.newInputStream(Paths.get(path))) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                roundTrip();
+                return super.read(b, off, len);
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                roundTrip();
+                return super.skip(n);
+            }
+        };
+    }
+
+    @Override
+    public OutputStream openOutput(String path, boolean append) throws IOException {
+        roundTrip();
+        OutputStream out = (append ?
+                Files.newOutputStream(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.APPEND) :
+                Files.newOutputStream(Paths.get(path)));
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                roundTrip();
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    private void roundTrip() throws InterruptedIOException {
+        long nanos = fileRoundTrip;
+        if (nanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private LocalTerminal terminal(short terminalId) {
+        LocalTerminal terminal = terminals.get(terminalId);
+        if (terminal == null) {
+            throw new IllegalArgumentException("No terminal: " + terminalId);
+        }
+        return terminal;
+    }
+
+    private static TerminalAttributes newTerminalAttributes() {
+        TerminalAttributes attributes = new TerminalAttributes();
+        if (attributes.inputModes == null) {
+            attributes.inputModes = EnumSet.noneOf(InputMode.class);
+        }
+        if (attributes.outputModes == null) {
+            attributes.outputModes = EnumSet.noneOf(OutputMode.class);
+        }
+        if (attributes.localModes == null) {
+            attributes.localModes = EnumSet.noneOf(LocalMode.class);
+        }
+        if (attributes.specialCharacterMap == null) {
+            attributes.specialCharacterMap = new EnumMap<>(SpecialCharacter.class);
+        }
+        return attributes;
+    }
+
+    private static <T> T proxy(Class<T> type, Call call) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "Local " + type.getSimpleName();
+                }
+            }
+            return call.invoke(method.getName(), args);
+        }));
+    }
+
+    private static class LocalTerminalEnd implements TerminalEnd {
+
+        private final LocalTerminal terminal;
+        private final InputStream in;
+        private final OutputStream out;
+
+        private LocalTerminalEnd(LocalTerminal terminal, InputStream in, OutputStream out) {
+            this.terminal = terminal;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private class LocalTerminal {
+
+        // Keystrokes from the master to the shell, and output from the shell to the master.
+        private final LoopbackPipe input = new LoopbackPipe(PIPE_SIZE);
+        private final LoopbackPipe output = new LoopbackPipe(PIPE_SIZE);
+        private volatile int shellPid = -1;
+
+        private void runShell() {
+            InputStream in = input.in;
+            OutputStream out = output.out;
+            StringBuilder line = new StringBuilder();
+            byte[] buffer = new byte[4096];
+            try {
+                out.write(PROMPT.getBytes(StandardCharsets.US_ASCII));
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    int echoStart = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (buffer[i] == '\r' || buffer[i] == '\n') {
+                            out.write(buffer, echoStart, i - echoStart);
+                            echoStart = i + 1;
+                            runLine(line.toString(), out);
+                            line.setLength(0);
+                        } else {
+                            line.append((char) buffer[i]);
+                        }
+                    }
+                    out.write(buffer, echoStart, n - echoStart);
+                }
+            } catch (IOException e) {
+                // Hung up.
+            } finally {
+                input.closeReader();
+                output.closeWriter();
+                shells.remove(shellPid);
+            }
+        }
+
+        private void runLine(String line, OutputStream out) throws IOException {
+            out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+            if (line.matches("bulk [0-9]+")) {
+                long remaining = Long.parseLong(line.substring(5));
+                while (remaining > 0) {
+                    int n = (int) Math.min(remaining, BULK_OUTPUT.length);
+                    out.write(BULK_OUTPUT, 0, n);
+                    remaining -= n;
+                }
+                out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            out.write(PROMPT.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        private void hangUp() {
+            input.closeWriter();
+            output.closeWriter();
+        }
+    }
+}
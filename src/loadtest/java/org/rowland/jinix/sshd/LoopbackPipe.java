@@ -0,0 +1,122 @@
+package org.rowland.jinix.sshd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A bounded in-memory pipe. Unlike PipedInputStream it does not care which threads read and write, and it
+ * reports the bytes waiting in available(), which the session I/O engines rely on.
+ */
+class LoopbackPipe {
+
+    private final byte[] buffer;
+    private int readPosition = 0;
+    private int count = 0;
+    private boolean writerClosed = false;
+    private boolean readerClosed = false;
+
+    final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0 ? -1 : b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return LoopbackPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return LoopbackPipe.this.available();
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    };
+
+    final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            LoopbackPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+        }
+    };
+
+    LoopbackPipe(int size) {
+        buffer = new byte[size];
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (count == 0) {
+            if (writerClosed || readerClosed) {
+                return -1;
+            }
+            await();
+        }
+        int n = Math.min(len, Math.min(count, buffer.length - readPosition));
+        System.arraycopy(buffer, readPosition, b, off, n);
+        readPosition = (readPosition + n) % buffer.length;
+        count -= n;
+        notifyAll();
+        return n;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            while (count == buffer.length && !readerClosed && !writerClosed) {
+                await();
+            }
+            if (readerClosed || writerClosed) {
+                throw new IOException("Pipe closed");
+            }
+            int writePosition = (readPosition + count) % buffer.length;
+            int n = Math.min(len, Math.min(buffer.length - count, buffer.length - writePosition));
+            System.arraycopy(b, off, buffer, writePosition, n);
+            count += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+    }
+
+    private synchronized int available() {
+        return count;
+    }
+
+    synchronized void closeReader() {
+        readerClosed = true;
+        notifyAll();
+    }
+
+    synchronized void closeWriter() {
+        writerClosed = true;
+        notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.config.hosts.HostConfigEntryResolver;
+import org.apache.sshd.client.keyverifier.AcceptAllServerKeyVerifier;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.keyprovider.KeyIdentityProvider;
+import org.apache.sshd.sftp.client.SftpClient;
+import org.apache.sshd.sftp.client.SftpClientFactory;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * sftp throughput test. Boots sshd in-process on the loopback interface with LocalJinix standing in for the Jinix
+ * file server, then has a number of concurrent connections each upload a file with sftp, and then download it
+ * again and check its content. The report gives the upload and download throughput across all connections.
+ *
+ * The files go to a temporary directory. With -r, each read or write of a file stream waits as for a round trip
+ * to the Jinix file server, which shows what the sftp buffers save, for example -r 500 -o SftpBufferSize=65536.
+ * Run with "java -cp target/loadtest.jar org.rowland.jinix.sshd.SftpThroughputTest".
+ */
+public class SftpThroughputTest {
+
+    private static final String USER = "loadtest";
+    private static final byte[] CONTENT = new byte[1048576]; // repeated to make up each file
+
+    static {
+        new Random(1).nextBytes(CONTENT);
+    }
+
+    private static long fileSize;
+    private static long timeout;
+    private static Path directory;
+
+    private static final Phaser phaser = new Phaser(1);
+    private static final LongAdder uploaded = new LongAdder();
+    private static final LongAdder downloaded = new LongAdder();
+    private static final LongAdder failures = new LongAdder();
+    private static final AtomicReference<Exception> firstFailure = new AtomicReference<>();
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("c", "connections", true, "number of concurrent connections. Default is 4");
+        options.addOption("s", "size", true, "bytes in each connection's file. Default is 67108864");
+        options.addOption("r", "roundTrip", true, "microseconds each file stream read or write waits. Default is 0");
+        options.addOption("t", "timeout", true, "seconds to wait for any one transfer. Default is 120");
+        options.addOption("o", "option", true, "sshd.config setting, as name=value");
+        options.addOption("l", "logFile", true, "file for the server's log. Default is sftp-sshd.log");
+
+        CommandLine cmdLine;
+        try {
+            cmdLine = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("SftpThroughputTest", options);
+            return;
+        }
+        int connections = Integer.parseInt(cmdLine.getOptionValue("c", "4"));
+        fileSize = Long.parseLong(cmdLine.getOptionValue("s", "67108864"));
+        long roundTrip = Long.parseLong(cmdLine.getOptionValue("r", "0"));
+        timeout = TimeUnit.SECONDS.toNanos(Long.parseLong(cmdLine.getOptionValue("t", "120")));
+
+        Properties sshdConfig = new Properties();
+        if (cmdLine.hasOption("o")) {
+            for (String setting : cmdLine.getOptionValues("o")) {
+                int equals = setting.indexOf('=');
+                if (equals < 0) {
+                    System.err.println("Setting must be name=value: " + setting);
+                    return;
+                }
+                sshdConfig.setProperty(setting.substring(0, equals).trim(), setting.substring(equals + 1).trim());
+            }
+        }
+
+        PrintStream report = System.out;
+        PrintStream log = new PrintStream(new FileOutputStream(cmdLine.getOptionValue("l", "sftp-sshd.log")), true);
+        System.setOut(log);
+        System.setErr(log);
+
+        directory = Files.createTempDirectory("sftptest");
+        sshdConfig.putIfAbsent("PasswordAuthentication", "yes");
+        sshdConfig.putIfAbsent("Sftp", "yes");
+        sshdConfig.putIfAbsent("MaxConnectionsPerAddress", "0");
+        sshdConfig.putIfAbsent("MaxHandshakesPerAddress", "0");
+        sshdConfig.putIfAbsent("HostKey", directory.resolve("ssh_host_ed25519_key").toString());
+        SshdConfig config = new SshdConfig(sshdConfig);
+        LocalJinix jinix = new LocalJinix();
+        jinix.setFileRoundTrip(roundTrip);
+        int port = LoadTest.startServer(config, jinix);
+
+        SshClient client = SshClient.setUpDefaultClient();
+        client.setServerKeyVerifier(AcceptAllServerKeyVerifier.INSTANCE);
+        client.setHostConfigEntryResolver(HostConfigEntryResolver.EMPTY);
+        client.setKeyIdentityProvider(KeyIdentityProvider.EMPTY_KEYS_PROVIDER);
+        Sshd.algorithmPolicy.apply(client);
+        client.start();
+
+        report.println("sshd on 127.0.0.1:" + port + ", " + connections + " connections, " + fileSize +
+                " byte files, " + roundTrip + "us file round trip");
+        report.println("configuration: " + config);
+
+        for (int i = 0; i < connections; i++) {
+            phaser.register();
+            int n = i + 1;
+            Thread t = new Thread(() -> runSession(client, port, directory.resolve("file" + n)), "Sftp Session " + n);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        // Phase 0: every connection has its sftp channel open.
+        phaser.arriveAndAwaitAdvance();
+        long uploadStart = System.nanoTime();
+        // Phase 1: uploads done.
+        phaser.arriveAndAwaitAdvance();
+        long uploadTime = System.nanoTime() - uploadStart;
+        long downloadStart = System.nanoTime();
+        // Phase 2: downloads done.
+        phaser.arriveAndAwaitAdvance();
+        long downloadTime = System.nanoTime() - downloadStart;
+        phaser.arriveAndDeregister();
+
+        report.printf("upload:             %d of %d files, %.1f MB/s total%n", uploaded.sum(), connections,
+                uploaded.sum() * fileSize / 1e6 / (uploadTime / 1e9));
+        report.printf("download:           %d of %d files, %.1f MB/s total%n", downloaded.sum(), connections,
+                downloaded.sum() * fileSize / 1e6 / (downloadTime / 1e9));
+        report.println("server metrics:     " + Sshd.metrics.snapshot());
+        if (failures.sum() > 0) {
+            report.println("failed sessions:    " + failures.sum() + ", first failure: " + firstFailure.get());
+        }
+
+        client.stop();
+        Sshd.stopServer();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        System.exit(failures.sum() > 0 ? 1 : 0);
+    }
+
+    private static void runSession(SshClient client, int port, Path file) {
+        try (ClientSession session = client.connect(USER, "127.0.0.1", port).verify(timeout, TimeUnit.NANOSECONDS).getSession()) {
+            session.addPasswordIdentity(USER);
+            session.auth().verify(timeout, TimeUnit.NANOSECONDS);
+            try (SftpClient sftp = SftpClientFactory.instance().createSftpClient(session)) {
+                phaser.arriveAndAwaitAdvance();
+
+                try (OutputStream out = sftp.write(file.toString())) {
+                    for (long remaining = fileSize; remaining > 0; remaining -= CONTENT.length) {
+                        out.write(CONTENT, 0, (int) Math.min(remaining, CONTENT.length));
+                    }
+                }
+                if (Files.size(file) != fileSize) {
+                    throw new IOException("Uploaded " + Files.size(file) + " bytes of " + fileSize + " to " + file);
+                }
+                uploaded.increment();
+                phaser.arriveAndAwaitAdvance();
+
+                try (InputStream in = sftp.read(file.toString())) {
+                    checkContent(in, file);
+                }
+                downloaded.increment();
+                phaser.arriveAndAwaitAdvance();
+            }
+        } catch (Exception e) {
+            failures.increment();
+            firstFailure.compareAndSet(null, e);
+        }
+        phaser.arriveAndDeregister();
+    }
+
+    private static void checkContent(InputStream in, Path file) throws IOException {
+        byte[] buffer = new byte[CONTENT.length];
+        long offset = 0;
+        int n;
+        while ((n = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+            int expected = (int) Math.min(fileSize - offset, CONTENT.length);
+            if (n != expected || !Arrays.equals(buffer, 0, n, CONTENT, 0, n)) {
+                throw new IOException("Downloaded content of " + file + " differs at block " + offset / CONTENT.length);
+            }
+            offset += n;
+        }
+        if (offset != fileSize) {
+            throw new IOException("Downloaded " + offset + " bytes of " + fileSize + " from " + file);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.sshd.common.AttributeRepository;
+import org.apache.sshd.common.SshException;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the work sshd takes on, so that overload degrades service rather than taking down the host.
+ *
+ * Connections are limited in total and per source address, and so are handshakes: connections that have not yet
+ * authenticated. A connection over a limit is rejected as its session is created, before the server sends its
+ * identification, so a reconnect storm costs little more than the accepts.
+ *
+ * Shell and exec setups, which allocate a terminal and exec a process, are limited separately. By default a setup
+ * over the limit is rejected at once. Setups run on the ssh I/O threads, of which there are only a few, and a
+ * setup that waits holds one of them, stalling the I/O of every session on it. A queue timeout can be set to let
+ * a setup over the limit wait for a place in a bounded queue instead, but it should be kept to a few
+ * milliseconds, and the queue to fewer setups than there are I/O threads.
+ *
+ * A limit of 0 disables that limit.
+ */
+class AdmissionControl implements SessionListener {
+
+    private static final AttributeRepository.AttributeKey<Admission> ADMISSION = new AttributeRepository.AttributeKey<>();
+
+    private static class Admission {
+        final Object address;
+        final AtomicBoolean handshaking = new AtomicBoolean(true);
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        Admission(Object address) {
+            this.address = address;
+        }
+    }
+
+    private final int maxConnections;
+    private final int maxConnectionsPerAddress;
+    private final int maxHandshakes;
+    private final int maxHandshakesPerAddress;
+    private final int maxSetups;
+    private final int maxQueuedSetups;
+    private final long setupQueueTimeout;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger handshakes = new AtomicInteger();
+    private final Map<Object, Integer> connectionsPerAddress = new ConcurrentHashMap<>();
+    private final Map<Object, Integer> handshakesPerAddress = new ConcurrentHashMap<>();
+    private final Semaphore setups;
+    private final AtomicInteger pendingSetups = new AtomicInteger();
+
+    /**
+     * @param setupQueueTimeout the longest time a setup waits in the queue, in milliseconds
+     */
+    AdmissionControl(int maxConnections, int maxConnectionsPerAddress, int maxHandshakes, int maxHandshakesPerAddress,
+                     int maxSetups, int maxQueuedSetups, long setupQueueTimeout) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+        this.maxHandshakes = maxHandshakes;
+        this.maxHandshakesPerAddress = maxHandshakesPerAddress;
+        this.maxSetups = maxSetups;
+        this.maxQueuedSetups = maxQueuedSetups;
+        this.setupQueueTimeout = setupQueueTimeout;
+        this.setups = (maxSetups > 0 ? new Semaphore(maxSetups, true) : null);
+    }
+
+    @Override
+    public void sessionCreated(Session session) {
+        Object address = addressOf(session.getIoSession().getRemoteAddress());
+        if (!acquire(connections, maxConnections)) {
+            throw connectionRejected(session, "Too many connections");
+        }
+        if (!acquire(connectionsPerAddress, address, maxConnectionsPerAddress)) {
+            connections.decrementAndGet();
+            throw connectionRejected(session, "Too many connections from this address");
+        }
+        if (!acquire(handshakes, maxHandshakes)) {
+            release(connectionsPerAddress, address);
+            connections.decrementAndGet();
+            throw handshakeRejected(session, "Too many handshakes in progress");
+        }
+        if (!acquire(handshakesPerAddress, address, maxHandshakesPerAddress)) {
+            handshakes.decrementAndGet();
+            release(connectionsPerAddress, address);
+            connections.decrementAndGet();
+            throw handshakeRejected(session, "Too many handshakes in progress from this address");
+        }
+        session.setAttribute(ADMISSION, new Admission(address));
+    }
+
+    @Override
+    public void sessionEvent(Session session, Event event) {
+        if (event == Event.Authenticated) {
+            endHandshake(session.getAttribute(ADMISSION));
+        }
+    }
+
+    @Override
+    public void sessionClosed(Session session) {
+        Admission admission = session.getAttribute(ADMISSION);
+        if (admission != null && admission.closed.compareAndSet(false, true)) {
+            endHandshake(admission);
+            release(connectionsPerAddress, admission.address);
+            connections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Take a place to set up a shell or exec command, waiting for at most the queue timeout. Every successful call must be matched by a call to
+     * {@link #releaseSetup()}.
+     *
+     * @throws IOException if the setup is rejected
+     */
+    void acquireSetup() throws IOException {
+        if (setups == null) {
+            return;
+        }
+        if (pendingSetups.incrementAndGet() > maxSetups + maxQueuedSetups) {
+            pendingSetups.decrementAndGet();
+            Sshd.metrics.setupRejected();
+            throw new SshException("Too many sessions starting, try again later");
+        }
+        try {
+            boolean acquired = (setupQueueTimeout > 0 ?
+                    setups.tryAcquire(setupQueueTimeout, TimeUnit.MILLISECONDS) : setups.tryAcquire());
+            if (!acquired) {
+                pendingSetups.decrementAndGet();
+                Sshd.metrics.setupRejected();
+                throw new SshException("Too many sessions starting, try again later");
+            }
+        } catch (InterruptedException e) {
+            pendingSetups.decrementAndGet();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to start session");
+        }
+    }
+
+    void releaseSetup() {
+        if (setups == null) {
+            return;
+        }
+        setups.release();
+        pendingSetups.decrementAndGet();
+    }
+
+    private void endHandshake(Admission admission) {
+        if (admission != null && admission.handshaking.compareAndSet(true, false)) {
+            release(handshakesPerAddress, admission.address);
+            handshakes.decrementAndGet();
+        }
+    }
+
+    private static AdmissionException connectionRejected(Session session, String reason) {
+        Sshd.metrics.connectionRejected();
+        return new AdmissionException(reason + ", rejected " + session.getIoSession().getRemoteAddress());
+    }
+
+    private static AdmissionException handshakeRejected(Session session, String reason) {
+        Sshd.metrics.handshakeRejected();
+        return new AdmissionException(reason + ", rejected " + session.getIoSession().getRemoteAddress());
+    }
+
+    private static boolean acquire(AtomicInteger count, int limit) {
+        if (limit <= 0) {
+            count.incrementAndGet();
+            return true;
+        }
+        int n;
+        do {
+            n = count.get();
+            if (n >= limit) {
+                return false;
+            }
+        } while (!count.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    private static boolean acquire(Map<Object, Integer> counts, Object address, int limit) {
+        if (limit <= 0) {
+            return true;
+        }
+        boolean[] acquired = new boolean[1];
+        counts.compute(address, (a, n) -> {
+            int count = (n == null ? 0 : n);
+            acquired[0] = count < limit;
+            return (acquired[0] ? count + 1 : n);
+        });
+        return acquired[0];
+    }
+
+    private static void release(Map<Object, Integer> counts, Object address) {
+        counts.computeIfPresent(address, (a, n) -> (n <= 1 ? null : n - 1));
+    }
+
+    private static Object addressOf(SocketAddress remoteAddress) {
+        return (remoteAddress instanceof InetSocketAddress ?
+                ((InetSocketAddress) remoteAddress).getAddress() : remoteAddress);
+    }
+
+    /**
+     * Thrown from sessionCreated to close a connection that is over a limit.
+     */
+    static class AdmissionException extends RuntimeException {
+        AdmissionException(String message) {
+            super(message, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.sshd.common.cipher.BuiltinCiphers;
+import org.apache.sshd.common.cipher.Cipher;
+import org.apache.sshd.common.compression.BuiltinCompressions;
+import org.apache.sshd.common.compression.Compression;
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.common.kex.AbstractDH;
+import org.apache.sshd.common.kex.BuiltinDHFactories;
+import org.apache.sshd.common.keyprovider.KeyPairProvider;
+import org.apache.sshd.common.mac.BuiltinMacs;
+import org.apache.sshd.common.mac.Mac;
+import org.apache.sshd.common.signature.BuiltinSignatures;
+import org.apache.sshd.common.signature.Signature;
+import org.apache.sshd.common.util.buffer.ByteArrayBuffer;
+import org.apache.sshd.common.util.security.SecurityUtils;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Measures the ciphers, MACs, key exchanges, host key signatures and compression that sshd supports, on the
+ * current JVM and hardware, and prints the results with suggested settings for sshd.config. Run it on the host
+ * that runs sshd, with the same JVM:
+ *
+ *     java -cp sshd.jar org.rowland.jinix.sshd.AlgorithmBenchmark
+ *
+ * Cipher and MAC figures are for one thread processing packets of the given size, which is the work a session
+ * does for bulk output. Key exchange and signature figures are the work the server does for each connection.
+ * Legacy algorithms are measured, but never suggested.
+ */
+public class AlgorithmBenchmark {
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static long measureNanos;
+    private static int packetSize;
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("t", "time", true, "milliseconds to measure each algorithm. Default is 1000");
+        options.addOption("p", "packetSize", true, "bytes in each packet. Default is 32768");
+
+        CommandLine cmdLine;
+        try {
+            cmdLine = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("AlgorithmBenchmark", options);
+            return;
+        }
+        measureNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(cmdLine.getOptionValue("t", "1000")));
+        packetSize = Math.max(16, Integer.parseInt(cmdLine.getOptionValue("p", "32768")) / 16 * 16);
+
+        System.out.println("Java " + System.getProperty("java.version") + " (" + System.getProperty("java.vm.name") +
+                ") on " + System.getProperty("os.arch") + ", " + Runtime.getRuntime().availableProcessors() +
+                " cores, " + packetSize + " byte packets");
+
+        System.out.println();
+        System.out.println("Ciphers (MB/s)");
+        Map<BuiltinCiphers, Double> ciphers = new LinkedHashMap<>();
+        for (BuiltinCiphers cipher : BuiltinCiphers.values()) {
+            if (cipher != BuiltinCiphers.none && cipher.isSupported()) {
+                ciphers.put(cipher, print(cipher.getName(), megabytesPerSecond(cipherOperation(cipher))));
+            }
+        }
+
+        System.out.println();
+        System.out.println("MACs (MB/s)");
+        Map<BuiltinMacs, Double> macs = new LinkedHashMap<>();
+        for (BuiltinMacs mac : BuiltinMacs.values()) {
+            if (mac.isSupported()) {
+                macs.put(mac, print(mac.getName(), megabytesPerSecond(macOperation(mac))));
+            }
+        }
+
+        System.out.println();
+        System.out.println("Key exchanges (server side exchanges/s)");
+        Map<BuiltinDHFactories, Double> keyExchanges = new LinkedHashMap<>();
+        for (BuiltinDHFactories keyExchange : BuiltinDHFactories.values()) {
+            // Group exchange costs the same as the fixed group of the size negotiated.
+            if (keyExchange.isSupported() && !keyExchange.isGroupExchange()) {
+                keyExchanges.put(keyExchange, print(keyExchange.getName(), rate(keyExchangeOperation(keyExchange))));
+            }
+        }
+
+        System.out.println();
+        System.out.println("Host key signatures (signatures/s)");
+        Map<BuiltinSignatures, Double> signatures = new LinkedHashMap<>();
+        Map<String, KeyPair> keyPairs = new HashMap<>();
+        for (BuiltinSignatures signature : BuiltinSignatures.values()) {
+            KeyPair keyPair = hostKey(signature, keyPairs);
+            if (keyPair != null && signature.isSupported()) {
+                signatures.put(signature, print(signature.getName(), rate(signatureOperation(signature, keyPair))));
+            }
+        }
+
+        System.out.println();
+        System.out.println("Compression of shell output");
+        double[] zlib = compression();
+        System.out.printf("  %-40s %12.1f MB/s, %.1f:1%n", BuiltinCompressions.Constants.ZLIB, zlib[0], zlib[1]);
+
+        System.out.println();
+        System.out.println("Suggested settings, fastest first");
+        List<BuiltinMacs> macOrder = macOrder(macs);
+        double bestMac = (macOrder.isEmpty() ? Double.MAX_VALUE : macs.get(macOrder.get(0)));
+        System.out.println("Ciphers=" + names(order(ciphers, cipher ->
+                cipher.getAuthenticationTagSize() > 0 ? ciphers.get(cipher) : combined(ciphers.get(cipher), bestMac))));
+        System.out.println("MACs=" + macOrder.stream().map(BuiltinMacs::getName).collect(Collectors.joining(",")));
+        String kexAlgorithms = names(order(keyExchanges, keyExchanges::get));
+        if (BuiltinDHFactories.dhgex256.isSupported()) {
+            kexAlgorithms += "," + BuiltinDHFactories.dhgex256.getName();
+        }
+        System.out.println("KexAlgorithms=" + kexAlgorithms);
+        System.out.println("HostKeyAlgorithms=" + names(order(signatures, signatures::get)));
+        System.out.println("Compression=no");
+        System.out.printf("# zlib keeps up with links slower than about %.0f MB/s. Use Compression=delayed only for " +
+                "links slower than that.%n", zlib[0]);
+    }
+
+    private static double print(String name, double value) {
+        System.out.printf("  %-40s %12.1f%s%n", name, value, isLegacy(name) ? "  (legacy)" : "");
+        return value;
+    }
+
+    /**
+     * CBC modes, RC4, MD5, SHA-1 signatures and key exchanges, and the 1024 bit group are measured for
+     * comparison, but never suggested.
+     */
+    private static boolean isLegacy(String name) {
+        return name.contains("-cbc") || name.startsWith("arcfour") || name.contains("md5") ||
+                name.equals("hmac-sha1-96") || (name.startsWith("diffie-hellman") && name.endsWith("-sha1")) || name.equals(KeyPairProvider.SSH_RSA) ||
+                name.startsWith(KeyPairProvider.SSH_DSS) || name.contains("-cert-");
+    }
+
+    private static <A extends Enum<A>> List<A> order(Map<A, Double> measured,
+                                                     Function<A, Double> score) {
+        return measured.keySet().stream()
+                .filter(algorithm -> !isLegacy(algorithm.toString()))
+                .sorted(Comparator.comparing(score).reversed())
+                .collect(Collectors.toList());
+    }
+
+    private static String names(List<?> algorithms) {
+        return algorithms.stream().map(Object::toString).collect(Collectors.joining(","));
+    }
+
+    /**
+     * ETM and plain MACs of the same hash cost the same, so MACs are ordered by hash, with ETM first.
+     */
+    private static List<BuiltinMacs> macOrder(Map<BuiltinMacs, Double> macs) {
+        Map<String, Double> hashRates = new HashMap<>();
+        for (Map.Entry<BuiltinMacs, Double> mac : macs.entrySet()) {
+            hashRates.merge(mac.getKey().getAlgorithm(), mac.getValue(), Math::max);
+        }
+        return macs.keySet().stream()
+                .filter(mac -> !isLegacy(mac.getName()))
+                .sorted(Comparator.comparing((BuiltinMacs mac) -> hashRates.get(mac.getAlgorithm())).reversed()
+                        .thenComparing(mac -> !mac.isEncryptThenMac()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the rate of a cipher and MAC applied one after the other to the same data
+     */
+    private static double combined(double cipherRate, double macRate) {
+        return 1 / (1 / cipherRate + 1 / macRate);
+    }
+
+    private static Operation cipherOperation(BuiltinCiphers factory) throws Exception {
+        Cipher cipher = factory.create();
+        cipher.init(Cipher.Mode.Encrypt, randomBytes(cipher.getKdfSize()), randomBytes(cipher.getIVSize()));
+        int tagSize = cipher.getAuthenticationTagSize();
+        if (tagSize > 0) {
+            // The packet length is the additional authenticated data.
+            byte[] packet = randomBytes(4 + packetSize + tagSize);
+            return () -> cipher.updateWithAAD(packet, 0, 4, packetSize);
+        }
+        byte[] packet = randomBytes(packetSize);
+        return () -> cipher.update(packet, 0, packetSize);
+    }
+
+    private static Operation macOperation(BuiltinMacs factory) throws Exception {
+        Mac mac = factory.create();
+        mac.init(randomBytes(mac.getDefaultBlockSize()));
+        byte[] packet = randomBytes(packetSize);
+        byte[] digest = new byte[mac.getDefaultBlockSize()];
+        long[] sequence = new long[1];
+        return () -> {
+            mac.updateUInt(sequence[0]++ & 0xFFFFFFFFL);
+            mac.update(packet, 0, packetSize);
+            mac.doFinal(digest, 0);
+        };
+    }
+
+    private static Operation keyExchangeOperation(BuiltinDHFactories factory) throws Exception {
+        byte[] clientE = factory.create().getE();
+        return () -> {
+            AbstractDH dh = factory.create();
+            dh.getE();
+            dh.setF(clientE);
+            dh.getK();
+        };
+    }
+
+    private static Operation signatureOperation(BuiltinSignatures factory, KeyPair keyPair) throws Exception {
+        Signature signature = factory.create();
+        signature.initSigner(null, keyPair.getPrivate());
+        byte[] exchangeHash = randomBytes(32);
+        return () -> {
+            signature.update(null, exchangeHash);
+            signature.sign(null);
+        };
+    }
+
+    /**
+     * @return a host key for the signature, or null for the certificate, security key and DSA signatures
+     */
+    private static KeyPair hostKey(BuiltinSignatures signature, Map<String, KeyPair> keyPairs)
+            throws GeneralSecurityException {
+        String keyType;
+        int keySize;
+        if (signature == BuiltinSignatures.ed25519) {
+            if (!SecurityUtils.isEDDSACurveSupported()) {
+                return null;
+            }
+            keyType = KeyPairProvider.SSH_ED25519;
+            keySize = 256;
+        } else if (signature == BuiltinSignatures.nistp256) {
+            keyType = KeyPairProvider.ECDSA_SHA2_NISTP256;
+            keySize = 256;
+        } else if (signature == BuiltinSignatures.nistp384) {
+            keyType = KeyPairProvider.ECDSA_SHA2_NISTP384;
+            keySize = 384;
+        } else if (signature == BuiltinSignatures.nistp521) {
+            keyType = KeyPairProvider.ECDSA_SHA2_NISTP521;
+            keySize = 521;
+        } else if (signature == BuiltinSignatures.rsa || signature == BuiltinSignatures.rsaSHA256 ||
+                signature == BuiltinSignatures.rsaSHA512) {
+            keyType = KeyPairProvider.SSH_RSA;
+            keySize = 3072;
+        } else {
+            return null;
+        }
+        KeyPair keyPair = keyPairs.get(keyType);
+        if (keyPair == null) {
+            keyPair = KeyUtils.generateKeyPair(keyType, keySize);
+            keyPairs.put(keyType, keyPair);
+        }
+        return keyPair;
+    }
+
+    /**
+     * Compress directory listings, which are typical of interactive output and compress well.
+     *
+     * @return the rate in MB/s of uncompressed data, and the compression ratio
+     */
+    private static double[] compression() throws Exception {
+        StringBuilder listing = new StringBuilder();
+        for (int i = 0; listing.length() < packetSize; i++) {
+            listing.append(String.format("-rw-r--r--  1 jinix staff %8d Oct %2d %02d:%02d file%05d.txt%n",
+                    random.nextInt(1000000), 1 + random.nextInt(31), random.nextInt(24), random.nextInt(60), i));
+        }
+        byte[] packet = listing.substring(0, packetSize).getBytes();
+
+        Compression compression = BuiltinCompressions.zlib.create();
+        compression.init(Compression.Type.Deflater, -1);
+        long[] compressedBytes = new long[1];
+        long[] packets = new long[1];
+        double rate = megabytesPerSecond(() -> {
+            ByteArrayBuffer buffer = new ByteArrayBuffer(packet.length + 64, false);
+            buffer.putRawBytes(packet);
+            compression.compress(buffer);
+            compressedBytes[0] += buffer.available();
+            packets[0]++;
+        });
+        return new double[] { rate, (double) packets[0] * packetSize / compressedBytes[0] };
+    }
+
+    private static double megabytesPerSecond(Operation operation) throws Exception {
+        return rate(operation) * packetSize / 1_000_000;
+    }
+
+    /**
+     * @return operations per second, after a warm up of half the measuring time
+     */
+    private static double rate(Operation operation) throws Exception {
+        run(operation, measureNanos / 2);
+        return run(operation, measureNanos);
+    }
+
+    private static double run(Operation operation, long nanos) throws Exception {
+        long start = System.nanoTime();
+        long end = start + nanos;
+        long count = 0;
+        long now;
+        do {
+            operation.run();
+            count++;
+            now = System.nanoTime();
+        } while (now < end);
+        return count * 1e9 / (now - start);
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,100 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.sshd.client.ClientBuilder;
+import org.apache.sshd.client.ClientFactoryManager;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.NamedResource;
+import org.apache.sshd.common.OptionalFeature;
+import org.apache.sshd.common.cipher.BuiltinCiphers;
+import org.apache.sshd.common.cipher.Cipher;
+import org.apache.sshd.common.compression.BuiltinCompressions;
+import org.apache.sshd.common.compression.Compression;
+import org.apache.sshd.common.config.ListParseResult;
+import org.apache.sshd.common.kex.BuiltinDHFactories;
+import org.apache.sshd.common.kex.DHFactory;
+import org.apache.sshd.common.kex.KexFactoryManager;
+import org.apache.sshd.common.mac.BuiltinMacs;
+import org.apache.sshd.common.mac.Mac;
+import org.apache.sshd.common.signature.BuiltinSignatures;
+import org.apache.sshd.common.signature.Signature;
+import org.apache.sshd.server.ServerBuilder;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ciphers, MACs, key exchanges, host key signatures and compression offered to clients, from the comma
+ * separated lists in sshd.config. The names are the OpenSSH names. Names that are unknown, or not supported by
+ * the JVM, are logged and left out, so a list may name algorithms that only some JVMs provide.
+ *
+ * The client's order of preference decides which of the offered algorithms is used, so the policy works mostly
+ * by what it leaves out. AlgorithmBenchmark measures the algorithms on the current JVM and suggests lists.
+ */
+class AlgorithmPolicy {
+
+    private final List<NamedFactory<Cipher>> ciphers;
+    private final List<NamedFactory<Mac>> macs;
+    private final List<DHFactory> keyExchanges;
+    private final List<NamedFactory<Signature>> signatures;
+    private final List<NamedFactory<Compression>> compressions;
+
+    /**
+     * @param hostKeyAlgorithms the host key signature algorithms, or an empty string to offer every algorithm
+     *                          the host keys support
+     * @param compression a list of compression names, or no, delayed or yes as in OpenSSH. Delayed and yes both
+     *                    offer zlib@openssh.com, which starts compressing after authentication.
+     */
+    AlgorithmPolicy(String ciphers, String macs, String kexAlgorithms, String hostKeyAlgorithms, String compression)
+            throws NoSuchAlgorithmException {
+        this.ciphers = new ArrayList<>(supported("Ciphers", ciphers, BuiltinCiphers.parseCiphersList(ciphers)));
+        this.macs = new ArrayList<>(supported("MACs", macs, BuiltinMacs.parseMacsList(macs)));
+        this.keyExchanges =
+                supported("KexAlgorithms", kexAlgorithms, BuiltinDHFactories.parseDHFactoriesList(kexAlgorithms));
+        this.signatures = (hostKeyAlgorithms.isEmpty() ? null : new ArrayList<>(supported("HostKeyAlgorithms",
+                hostKeyAlgorithms, BuiltinSignatures.parseSignatureList(hostKeyAlgorithms))));
+
+        if (compression.equalsIgnoreCase("no")) {
+            compression = BuiltinCompressions.Constants.NONE;
+        } else if (compression.equalsIgnoreCase("delayed") || compression.equalsIgnoreCase("yes")) {
+            compression = BuiltinCompressions.Constants.DELAYED_ZLIB + "," + BuiltinCompressions.Constants.NONE;
+        }
+        this.compressions = new ArrayList<>(supported("Compression", compression,
+                BuiltinCompressions.parseCompressionsList(compression)));
+    }
+
+    /**
+     * Apply the policy to a server, or to a client that should offer the same algorithms.
+     */
+    void apply(KexFactoryManager manager) {
+        manager.setCipherFactories(ciphers);
+        manager.setMacFactories(macs);
+        manager.setKeyExchangeFactories(NamedFactory.setUpTransformedFactories(false, keyExchanges,
+                manager instanceof ClientFactoryManager ? ClientBuilder.DH2KEX : ServerBuilder.DH2KEX));
+        manager.setCompressionFactories(compressions);
+        if (signatures != null) {
+            manager.setSignatureFactories(signatures);
+        }
+    }
+
+    private static <F extends NamedResource> List<F> supported(String setting, String names,
+                                                               ListParseResult<F> parsed)
+            throws NoSuchAlgorithmException {
+        List<F> supported = new ArrayList<>();
+        List<String> unsupported = new ArrayList<>(parsed.getUnsupportedValues());
+        for (F factory : parsed.getParsedValues()) {
+            if (factory instanceof OptionalFeature && !((OptionalFeature) factory).isSupported()) {
+                unsupported.add(factory.getName());
+            } else {
+                supported.add(factory);
+            }
+        }
+        if (!unsupported.isEmpty()) {
+            Sshd.log.warn(setting + ": unsupported algorithms ignored: " + unsupported);
+        }
+        if (supported.isEmpty()) {
+            throw new NoSuchAlgorithmException(setting + ": no supported algorithms in " + names);
+        }
+        return supported;
+    }
+}
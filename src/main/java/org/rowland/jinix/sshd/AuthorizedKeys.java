@@ -0,0 +1,139 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.sshd.common.config.keys.AuthorizedKeyEntry;
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.common.config.keys.PublicKeyEntryResolver;
+import org.apache.sshd.server.auth.pubkey.PublickeyAuthenticator;
+import org.apache.sshd.server.session.ServerSession;
+import org.rowland.jinix.io.JinixFile;
+import org.rowland.jinix.io.JinixFileInputStream;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Public key authentication against each user's authorized_keys file. A user's file is parsed once into an index
+ * of key fingerprints, so checking a key is a hash lookup however many keys the file holds. As with the
+ * environment file, the file's modification time is checked at most once per check interval, and the file is
+ * parsed again only when that time changes. Users found without a file are remembered for the check interval
+ * too, in a bounded cache, as any user name can be tried.
+ *
+ * Entries with options, such as from= or command=, are skipped, as sshd can not enforce them.
+ */
+class AuthorizedKeys implements PublickeyAuthenticator {
+
+    private static final int MAX_USERS_WITHOUT_KEYS = 1024;
+
+    private final String fileTemplate;
+    private final long checkInterval;
+    private final Map<String, UserKeys> users = new ConcurrentHashMap<>();
+
+    // User name to the time at which to look for the user's file again, guarded by itself.
+    private final Map<String, Long> usersWithoutKeys = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_USERS_WITHOUT_KEYS;
+        }
+    };
+
+    private static class UserKeys {
+        volatile Map<String, PublicKey> keys = Collections.emptyMap();
+        long lastModified = -1;
+        long nextCheck = System.nanoTime(); // the first check is due at once
+    }
+
+    /**
+     * @param fileTemplate the path of a user's authorized_keys file, with %u standing for the user name
+     * @param checkInterval minimum time between checks of a user's file, in milliseconds
+     */
+    AuthorizedKeys(String fileTemplate, long checkInterval) {
+        this.fileTemplate = fileTemplate;
+        this.checkInterval = TimeUnit.MILLISECONDS.toNanos(checkInterval);
+    }
+
+    @Override
+    public boolean authenticate(String username, PublicKey key, ServerSession session) {
+        if (username.isEmpty() || username.contains("/") || username.startsWith(".")) {
+            return false;
+        }
+        PublicKey authorized = getKeys(username).get(KeyUtils.getFingerPrint(key));
+        return authorized != null && KeyUtils.compareKeys(authorized, key);
+    }
+
+    private Map<String, PublicKey> getKeys(String username) {
+        synchronized (usersWithoutKeys) {
+            Long nextCheck = usersWithoutKeys.get(username);
+            if (nextCheck != null) {
+                if (System.nanoTime() - nextCheck < 0) {
+                    return Collections.emptyMap();
+                }
+                usersWithoutKeys.remove(username);
+            }
+        }
+        UserKeys userKeys = users.computeIfAbsent(username, u -> new UserKeys());
+        synchronized (userKeys) {
+            long now = System.nanoTime();
+            // Honoured after a failed read too, so that a file that cannot be read is not retried on every attempt.
+            if (now - userKeys.nextCheck < 0) {
+                return userKeys.keys;
+            }
+            userKeys.nextCheck = now + checkInterval;
+
+            JinixFile file = new JinixFile(fileTemplate.replace("%u", username));
+            long modified = file.lastModified(); // 0 if the file does not exist
+            if (modified == 0) {
+                users.remove(username, userKeys);
+                userKeys.keys = Collections.emptyMap();
+                synchronized (usersWithoutKeys) {
+                    usersWithoutKeys.put(username, userKeys.nextCheck);
+                }
+                return userKeys.keys;
+            }
+            if (modified == userKeys.lastModified) {
+                return userKeys.keys;
+            }
+            try {
+                userKeys.keys = load(file);
+                userKeys.lastModified = modified;
+            } catch (IOException e) {
+                // Keep the keys from the last good read, and try again after the next check interval.
+                Sshd.log.warn("Failed to read " + file.getAbsolutePath() + ": " + e.getMessage());
+            }
+            return userKeys.keys;
+        }
+    }
+
+    private static Map<String, PublicKey> load(JinixFile file) throws IOException {
+        List<AuthorizedKeyEntry> entries;
+        try (Reader reader = new InputStreamReader(new JinixFileInputStream(file), StandardCharsets.UTF_8)) {
+            entries = AuthorizedKeyEntry.readAuthorizedKeys(reader, false);
+        }
+        Map<String, PublicKey> keys = new HashMap<>();
+        for (AuthorizedKeyEntry entry : entries) {
+            if (!entry.getLoginOptions().isEmpty()) {
+                Sshd.log.warn("Skipped key with options in " + file.getAbsolutePath() + ": " + entry.getComment());
+                continue;
+            }
+            try {
+                PublicKey key = entry.resolvePublicKey(null, PublicKeyEntryResolver.IGNORING);
+                if (key != null) {
+                    keys.put(KeyUtils.getFingerPrint(key), key);
+                }
+            } catch (GeneralSecurityException | IOException e) {
+                Sshd.log.warn("Skipped unreadable key in " + file.getAbsolutePath() + ": " + e.getMessage());
+            }
+        }
+        return Collections.unmodifiableMap(keys);
+    }
+}
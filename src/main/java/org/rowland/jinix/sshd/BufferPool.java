@@ -0,0 +1,34 @@
+package org.rowland.jinix.sshd;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of equally sized byte buffers, so that bulk transfers do not allocate a large buffer for every file
+ * they open. At most maxPooled buffers are kept; buffers released beyond that are left to the garbage collector.
+ */
+class BufferPool {
+
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> buffers;
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        return (buffer != null ? buffer : new byte[bufferSize]);
+    }
+
+    void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.sshd.common.FactoryManager;
+import org.apache.sshd.common.RuntimeSshException;
+import org.apache.sshd.common.io.AbstractIoServiceFactory;
+import org.apache.sshd.common.io.AbstractIoServiceFactoryFactory;
+import org.apache.sshd.common.io.IoAcceptor;
+import org.apache.sshd.common.io.IoConnector;
+import org.apache.sshd.common.io.IoHandler;
+import org.apache.sshd.common.io.IoServiceFactory;
+import org.apache.sshd.common.io.nio2.Nio2Acceptor;
+import org.apache.sshd.common.io.nio2.Nio2CompletionHandler;
+import org.apache.sshd.common.io.nio2.Nio2Connector;
+import org.apache.sshd.common.io.nio2.Nio2Service;
+import org.apache.sshd.common.io.nio2.Nio2Session;
+import org.apache.sshd.common.util.Readable;
+import org.apache.sshd.common.util.threads.CloseableExecutorService;
+import org.apache.sshd.common.util.threads.ThreadUtils;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * sshd's NIO2 I/O service, except that outgoing connections read into pooled direct buffers. On the server the
+ * only outgoing connections are ssh -L tunnels to their targets, which may carry sustained bulk traffic. NIO2
+ * reads into a heap buffer through a temporary direct buffer, so reading straight into a direct buffer saves a
+ * copy of every block, and pooling the buffers saves allocating one per tunnel.
+ *
+ * Accepted connections, which include ssh -R tunnels, keep sshd's heap buffers, as the NIO2 acceptor does not
+ * let a subclass create its sessions.
+ *
+ * With more than one acceptor, the I/O threads are divided among that many channel groups, which take the place of
+ * the single group. Connections are accepted by a ShardedAcceptor with a shard on each group, and outgoing
+ * connections are dealt out among the groups.
+ */
+class DirectBufferNio2ServiceFactory extends AbstractIoServiceFactory {
+
+    private final List<AsynchronousChannelGroup> groups = new ArrayList<>();
+    private final BlockingQueue<ByteBuffer> readBuffers;
+    private final int readBufferSize;
+    private final AtomicInteger nextGroup = new AtomicInteger();
+
+    DirectBufferNio2ServiceFactory(FactoryManager manager, CloseableExecutorService executor, int readBufferSize,
+                                   int maxPooled, int acceptors) {
+        super(manager, ThreadUtils.newFixedThreadPoolIf(executor, manager.toString() + "-nio2", getNioWorkers(manager)));
+        this.readBufferSize = readBufferSize;
+        this.readBuffers = new ArrayBlockingQueue<>(maxPooled);
+        try {
+            if (acceptors > 1) {
+                // The executor given to the factory is then left unused, and so never starts a thread.
+                int threadsPerGroup = Math.max(1, (getNioWorkers(manager) + acceptors - 1) / acceptors);
+                for (int i = 0; i < acceptors; i++) {
+                    CloseableExecutorService groupExecutor = ThreadUtils.newFixedThreadPool(
+                            manager.toString() + "-nio2-" + (i + 1), threadsPerGroup);
+                    try {
+                        groups.add(AsynchronousChannelGroup.withThreadPool(groupExecutor));
+                    } catch (IOException e) {
+                        groupExecutor.shutdownNow();
+                        throw e;
+                    }
+                }
+            } else {
+                groups.add(AsynchronousChannelGroup.withThreadPool(ThreadUtils.noClose(getExecutorService())));
+            }
+        } catch (IOException e) {
+            shutdownGroups();
+            throw new RuntimeSshException(e);
+        }
+    }
+
+    @Override
+    public IoConnector createConnector(IoHandler handler) {
+        AsynchronousChannelGroup group = groups.get(Math.floorMod(nextGroup.getAndIncrement(), groups.size()));
+        return autowireCreatedService(new DirectBufferConnector(getFactoryManager(), handler, group));
+    }
+
+    @Override
+    public IoAcceptor createAcceptor(IoHandler handler) {
+        if (groups.size() > 1) {
+            return autowireCreatedService(new ShardedAcceptor(getFactoryManager(), handler, groups));
+        }
+        return autowireCreatedService(new Nio2Acceptor(getFactoryManager(), handler, groups.get(0)));
+    }
+
+    @Override
+    protected void doCloseImmediately() {
+        try {
+            shutdownGroups();
+        } finally {
+            super.doCloseImmediately();
+        }
+    }
+
+    private void shutdownGroups() {
+        for (AsynchronousChannelGroup group : groups) {
+            try {
+                group.shutdownNow();
+                group.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                Sshd.log.warn("Failed to shut down NIO2 channel group: " + e);
+            }
+        }
+    }
+
+    private ByteBuffer acquireReadBuffer() {
+        ByteBuffer buffer = readBuffers.poll();
+        return (buffer != null ? buffer : ByteBuffer.allocateDirect(readBufferSize));
+    }
+
+    private void releaseReadBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        readBuffers.offer(buffer);
+    }
+
+    private class DirectBufferConnector extends Nio2Connector {
+        DirectBufferConnector(FactoryManager manager, IoHandler handler, AsynchronousChannelGroup group) {
+            super(manager, handler, group);
+        }
+
+        @Override
+        protected Nio2Session createSession(FactoryManager manager, IoHandler handler, AsynchronousSocketChannel socket)
+                throws Throwable {
+            return new DirectBufferSession(this, manager, handler, socket, null);
+        }
+    }
+
+    /**
+     * A session that reads into a pooled direct buffer. The buffer goes back to the pool once the session is closed
+     * and no read is in progress, as a read that was pending at the close still completes, with a failure.
+     */
+    private class DirectBufferSession extends Nio2Session {
+        private ByteBuffer readBuffer;
+        private int readsInProgress;
+
+        DirectBufferSession(Nio2Service service, FactoryManager manager, IoHandler handler,
+                            AsynchronousSocketChannel socket, SocketAddress acceptanceAddress) throws IOException {
+            super(service, manager, handler, socket, acceptanceAddress);
+        }
+
+        @Override
+        public void startReading() {
+            ByteBuffer buffer;
+            synchronized (this) {
+                if (readBuffer == null) {
+                    readBuffer = acquireReadBuffer();
+                }
+                buffer = readBuffer;
+            }
+            startReading(buffer);
+        }
+
+        @Override
+        protected void doReadCycle(ByteBuffer buffer, Nio2CompletionHandler<Integer, Object> completion) {
+            synchronized (this) {
+                readsInProgress++;
+            }
+            try {
+                super.doReadCycle(buffer, completion);
+            } catch (RuntimeException e) {
+                readFinished();
+                throw e;
+            }
+        }
+
+        @Override
+        protected void handleReadCycleCompletion(ByteBuffer buffer, Readable bufReader,
+                                                 Nio2CompletionHandler<Integer, Object> completionHandler,
+                                                 Integer result, Object attachment) {
+            try {
+                super.handleReadCycleCompletion(buffer, bufReader, completionHandler, result, attachment);
+            } finally {
+                readFinished();
+            }
+        }
+
+        @Override
+        protected void handleReadCycleFailure(ByteBuffer buffer, Readable bufReader, Throwable exc,
+                                              Object attachment) {
+            try {
+                super.handleReadCycleFailure(buffer, bufReader, exc, attachment);
+            } finally {
+                readFinished();
+            }
+        }
+
+        @Override
+        protected void doCloseImmediately() {
+            super.doCloseImmediately();
+            releaseIfIdle();
+        }
+
+        private synchronized void readFinished() {
+            readsInProgress--;
+            releaseIfIdle();
+        }
+
+        private synchronized void releaseIfIdle() {
+            if (readsInProgress == 0 && readBuffer != null && isClosing()) {
+                releaseReadBuffer(readBuffer);
+                readBuffer = null;
+            }
+        }
+    }
+
+    /**
+     * Creates a DirectBufferNio2ServiceFactory for each client or server.
+     */
+    static class FactoryFactory extends AbstractIoServiceFactoryFactory {
+        private final int readBufferSize;
+        private final int maxPooled;
+        private final int acceptors;
+
+        FactoryFactory(int readBufferSize, int maxPooled, int acceptors) {
+            super(null);
+            this.readBufferSize = readBufferSize;
+            this.maxPooled = maxPooled;
+            this.acceptors = acceptors;
+        }
+
+        @Override
+        public IoServiceFactory create(FactoryManager manager) {
+            return new DirectBufferNio2ServiceFactory(manager, newExecutor(), readBufferSize, maxPooled, acceptors);
+        }
+    }
+}
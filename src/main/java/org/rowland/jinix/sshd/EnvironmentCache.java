@@ -0,0 +1,85 @@
+package org.rowland.jinix.sshd;
+
+import org.rowland.jinix.io.JinixFile;
+import org.rowland.jinix.io.JinixFileInputStream;
+import org.rowland.jinix.lang.JinixSystem;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The base environment for processes started by sshd, read from /config/environment.config, or taken from the
+ * Jinix system properties if there is no environment file. The file is parsed once and shared by all sessions.
+ * Its modification time is checked at most once per check interval, and the file is parsed again only when that
+ * time changes, so a burst of logins costs at most one remote stat.
+ */
+class EnvironmentCache {
+
+    private static final String ENVIRONMENT_FILE = "/config/environment.config";
+
+    private final JinixFile environmentFile = new JinixFile(ENVIRONMENT_FILE);
+    private final long checkInterval;
+
+    private volatile Map<Object, Object> base = null;
+    private long lastModified = -1;
+    private long nextCheck = 0;
+    private long generation = 0; // counts the times the base environment has been read
+
+    /**
+     * @param checkInterval minimum time between checks of the environment file, in milliseconds
+     */
+    EnvironmentCache(long checkInterval) {
+        this.checkInterval = TimeUnit.MILLISECONDS.toNanos(checkInterval);
+    }
+
+    /**
+     * @return a new, modifiable environment holding the base environment, to which the caller adds its own keys
+     */
+    Properties createEnvironment() throws IOException {
+        Properties envProps = new Properties();
+        envProps.putAll(getBase());
+        return envProps;
+    }
+
+    /**
+     * @return a number that changes whenever the base environment does, so that holders of an environment created
+     * earlier can tell that it is out of date
+     */
+    synchronized long getGeneration() throws IOException {
+        getBase();
+        return generation;
+    }
+
+    private synchronized Map<Object, Object> getBase() throws IOException {
+        long now = System.nanoTime();
+        if (base != null && now - nextCheck < 0) {
+            return base;
+        }
+        nextCheck = now + checkInterval;
+
+        long modified = environmentFile.lastModified(); // 0 if the file does not exist
+        if (base != null && modified == lastModified) {
+            return base;
+        }
+
+        Properties envProps = new Properties();
+        if (modified != 0) {
+            try (Reader environmentFileReader = new BufferedReader(new InputStreamReader(new JinixFileInputStream(environmentFile)))) {
+                envProps.load(environmentFileReader);
+            }
+        } else {
+            envProps.putAll(JinixSystem.getJinixProperties());
+        }
+        base = Collections.unmodifiableMap(new HashMap<>(envProps));
+        lastModified = modified;
+        generation++;
+        return base;
+    }
+}
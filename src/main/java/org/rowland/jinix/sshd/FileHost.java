@@ -0,0 +1,30 @@
+package org.rowland.jinix.sshd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The file operations that sftp and scp transfers perform on the Jinix file server. They are kept behind this
+ * interface so that the load harness can measure transfers against local files.
+ */
+interface FileHost {
+
+    boolean exists(String path);
+
+    long length(String path);
+
+    boolean delete(String path);
+
+    /**
+     * Rename a file, replacing any file already at the new path.
+     */
+    boolean rename(String from, String to);
+
+    InputStream openInput(String path) throws IOException;
+
+    /**
+     * @param append whether to write at the end of the file, rather than truncate it
+     */
+    OutputStream openOutput(String path, boolean append) throws IOException;
+}
@@ -0,0 +1,145 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.util.net.SshdSocketAddress;
+import org.apache.sshd.server.forward.ForwardingFilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides which TCP forwarding requests are allowed, from the AllowTcpForwarding, PermitOpen and PermitListen
+ * settings in sshd.config. Their meaning follows OpenSSH:
+ *
+ * AllowTcpForwarding is no, local (ssh -L only), remote (ssh -R only) or yes.
+ *
+ * PermitOpen lists the host:port targets that ssh -L may connect to, or is any or none. Either half of an entry
+ * may be *.
+ *
+ * PermitListen lists the [host:]port addresses that ssh -R may listen on, or is any or none. An entry without a
+ * host only allows the loopback address, so a forward is not exposed to the network unless a host, or *, is
+ * given. The port may be * or 0, which lets the server choose. OpenSSH clients match a forwarded connection by
+ * the listen address they asked for, and sshd reports the address it bound, so ssh -R should give an address
+ * rather than a name, as in -R 127.0.0.1:8080:host:80.
+ *
+ * Agent and X11 forwarding are never allowed, as Jinix has neither.
+ */
+class ForwardingPolicy implements ForwardingFilter {
+
+    private static final List<String> LOOPBACK_HOSTS = Arrays.asList("localhost", "127.0.0.1", "::1");
+
+    private final boolean allowLocal;
+    private final boolean allowRemote;
+    private final List<Permission> permitOpen;
+    private final List<Permission> permitListen;
+
+    ForwardingPolicy(String allowTcpForwarding, String permitOpen, String permitListen) {
+        this.allowLocal = allowTcpForwarding.equalsIgnoreCase("yes") || allowTcpForwarding.equalsIgnoreCase("local");
+        this.allowRemote = allowTcpForwarding.equalsIgnoreCase("yes") || allowTcpForwarding.equalsIgnoreCase("remote");
+        if (!allowLocal && !allowRemote && !allowTcpForwarding.equalsIgnoreCase("no")) {
+            Sshd.log.warn("Unknown AllowTcpForwarding: " + allowTcpForwarding + ", forwarding disabled");
+        }
+        this.permitOpen = parse("PermitOpen", permitOpen, false);
+        this.permitListen = parse("PermitListen", permitListen, true);
+    }
+
+    boolean isEnabled() {
+        return (allowLocal && !permitOpen.isEmpty()) || (allowRemote && !permitListen.isEmpty());
+    }
+
+    @Override
+    public boolean canConnect(Type type, SshdSocketAddress address, Session session) {
+        boolean allowed = allowLocal && permits(permitOpen, address);
+        if (!allowed) {
+            Sshd.log.info("Refused forwarding to " + address + " for " + session.getUsername() + "@" +
+                    session.getIoSession().getRemoteAddress());
+        }
+        return allowed;
+    }
+
+    @Override
+    public boolean canListen(SshdSocketAddress address, Session session) {
+        boolean allowed = allowRemote && permits(permitListen, address);
+        if (!allowed) {
+            Sshd.log.info("Refused listening on " + address + " for " + session.getUsername() + "@" +
+                    session.getIoSession().getRemoteAddress());
+        }
+        return allowed;
+    }
+
+    @Override
+    public boolean canForwardAgent(Session session, String requestType) {
+        return false;
+    }
+
+    @Override
+    public boolean canForwardX11(Session session, String requestType) {
+        return false;
+    }
+
+    private static boolean permits(List<Permission> permissions, SshdSocketAddress address) {
+        for (Permission permission : permissions) {
+            if (permission.matches(address.getHostName(), address.getPort())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Permission> parse(String setting, String value, boolean loopbackByDefault) {
+        List<Permission> permissions = new ArrayList<>();
+        if (value.isEmpty() || value.equalsIgnoreCase("none")) {
+            return permissions;
+        }
+        if (value.equalsIgnoreCase("any")) {
+            permissions.add(new Permission(null, -1));
+            return permissions;
+        }
+        for (String entry : value.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            String host = (colon >= 0 ? entry.substring(0, colon) : null);
+            String port = entry.substring(colon + 1);
+            if (host != null && host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+            try {
+                int portNumber = (port.equals("*") ? -1 : Integer.parseInt(port));
+                if (host == null) {
+                    if (!loopbackByDefault) {
+                        throw new NumberFormatException();
+                    }
+                    for (String loopback : LOOPBACK_HOSTS) {
+                        permissions.add(new Permission(loopback, portNumber));
+                    }
+                } else {
+                    permissions.add(new Permission(host.equals("*") ? null : host, portNumber));
+                }
+            } catch (NumberFormatException e) {
+                Sshd.log.warn(setting + ": malformed entry ignored: " + entry);
+            }
+        }
+        return permissions;
+    }
+
+    /**
+     * A host and port that may be forwarded. A null host, or a port of -1, matches anything.
+     */
+    private static class Permission {
+        private final String host;
+        private final int port;
+
+        Permission(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        boolean matches(String host, int port) {
+            return (this.host == null || this.host.equalsIgnoreCase(host)) && (this.port == -1 || this.port == port);
+        }
+    }
+}
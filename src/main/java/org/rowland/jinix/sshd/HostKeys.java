@@ -0,0 +1,185 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.NamedResource;
+import org.apache.sshd.common.config.keys.FilePasswordProvider;
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.common.config.keys.writer.openssh.OpenSSHKeyPairResourceWriter;
+import org.apache.sshd.common.keyprovider.KeyPairProvider;
+import org.apache.sshd.common.signature.BuiltinSignatures;
+import org.apache.sshd.common.signature.Signature;
+import org.apache.sshd.common.util.security.SecurityUtils;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The server's host keys. Each configured file holds a private key in OpenSSH format, with the public key in a
+ * .pub file beside it. A file that does not exist is generated once, with a key of the type named in the file
+ * name: ed25519, ecdsa or rsa. Files ending in .ser are the serialized keys of earlier versions, and are still
+ * read. The keys are parsed once, at startup, and held in memory.
+ *
+ * Keys and signature algorithms are offered cheapest to sign first: Ed25519, then ECDSA, then RSA.
+ */
+class HostKeys {
+
+    private static final int ECDSA_KEY_SIZE = 256;
+    private static final int RSA_KEY_SIZE = 3072;
+
+    private static final List<BuiltinSignatures> SIGNATURE_PREFERENCE = List.of(
+            BuiltinSignatures.ed25519,
+            BuiltinSignatures.nistp256,
+            BuiltinSignatures.nistp384,
+            BuiltinSignatures.nistp521,
+            BuiltinSignatures.rsaSHA512,
+            BuiltinSignatures.rsaSHA256,
+            BuiltinSignatures.rsa);
+
+    private final List<KeyPair> keyPairs = new ArrayList<>();
+
+    /**
+     * @param hostKeyFiles a comma separated list of host key files
+     */
+    HostKeys(String hostKeyFiles) throws IOException, GeneralSecurityException {
+        for (String hostKeyFile : hostKeyFiles.split(",")) {
+            if (!hostKeyFile.trim().isEmpty()) {
+                load(Paths.get(hostKeyFile.trim()));
+            }
+        }
+        if (keyPairs.isEmpty()) {
+            throw new IOException("No usable host keys in " + hostKeyFiles);
+        }
+        keyPairs.sort(Comparator.comparingInt(HostKeys::signingCost));
+    }
+
+    KeyPairProvider getKeyPairProvider() {
+        return KeyPairProvider.wrap(keyPairs);
+    }
+
+    /**
+     * @return the supported signature algorithms, cheapest first, with DSA last if there is a DSA host key
+     */
+    List<NamedFactory<Signature>> getSignatureFactories() {
+        List<NamedFactory<Signature>> signatures = new ArrayList<>();
+        for (BuiltinSignatures signature : SIGNATURE_PREFERENCE) {
+            if (signature.isSupported()) {
+                signatures.add(signature);
+            }
+        }
+        for (KeyPair keyPair : keyPairs) {
+            if (KeyPairProvider.SSH_DSS.equals(KeyUtils.getKeyType(keyPair))) {
+                signatures.add(BuiltinSignatures.dsa);
+                break;
+            }
+        }
+        return signatures;
+    }
+
+    private void load(Path path) throws IOException, GeneralSecurityException {
+        String fileName = path.getFileName().toString();
+        if (fileName.endsWith(".ser")) {
+            SimpleGeneratorHostKeyProvider provider = new SimpleGeneratorHostKeyProvider(path);
+            add(path, provider.loadKeys(null));
+            return;
+        }
+
+        if (Files.exists(path)) {
+            try (InputStream in = Files.newInputStream(path)) {
+                add(path, SecurityUtils.loadKeyPairIdentities(null, NamedResource.ofName(path.toString()), in,
+                        FilePasswordProvider.EMPTY));
+            }
+            return;
+        }
+
+        String keyType;
+        int keySize;
+        if (fileName.contains("ed25519")) {
+            if (!SecurityUtils.isEDDSACurveSupported()) {
+                Sshd.log.warn("Ed25519 is not supported, host key not generated: " + path);
+                return;
+            }
+            keyType = KeyPairProvider.SSH_ED25519;
+            keySize = 256;
+        } else if (fileName.contains("ecdsa")) {
+            keyType = KeyPairProvider.ECDSA_SHA2_NISTP256;
+            keySize = ECDSA_KEY_SIZE;
+        } else if (fileName.contains("rsa")) {
+            keyType = KeyPairProvider.SSH_RSA;
+            keySize = RSA_KEY_SIZE;
+        } else {
+            throw new IOException("Host key file does not exist, and its name gives no key type: " + path);
+        }
+        Sshd.log.info("Generating " + keyType + " host key: " + path);
+        KeyPair keyPair = KeyUtils.generateKeyPair(keyType, keySize);
+        write(path, keyPair);
+        add(path, List.of(keyPair));
+    }
+
+    private static void write(Path path, KeyPair keyPair) throws IOException, GeneralSecurityException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        String comment = "sshd host key";
+        try (OutputStream out = newPrivateOutputStream(path)) {
+            OpenSSHKeyPairResourceWriter.INSTANCE.writePrivateKey(keyPair, comment, null, out);
+        }
+        try (OutputStream out = Files.newOutputStream(path.resolveSibling(path.getFileName() + ".pub"))) {
+            OpenSSHKeyPairResourceWriter.INSTANCE.writePublicKey(keyPair.getPublic(), comment, out);
+        }
+    }
+
+    /**
+     * Creates a file only its owner can read, with those permissions from the start, so that the key is never
+     * readable by others while it is being written.
+     */
+    private static OutputStream newPrivateOutputStream(Path path) throws IOException {
+        Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            return Channels.newOutputStream(Files.newByteChannel(path, options,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system.
+            return Channels.newOutputStream(Files.newByteChannel(path, options));
+        }
+    }
+
+    private void add(Path path, Iterable<KeyPair> loaded) {
+        if (loaded == null) {
+            return;
+        }
+        for (KeyPair keyPair : loaded) {
+            keyPairs.add(keyPair);
+            Sshd.log.info("Host key " + KeyUtils.getKeyType(keyPair) + " " +
+                    KeyUtils.getFingerPrint(keyPair.getPublic()) + ": " + path);
+        }
+    }
+
+    private static int signingCost(KeyPair keyPair) {
+        String keyType = KeyUtils.getKeyType(keyPair);
+        if (KeyPairProvider.SSH_ED25519.equals(keyType)) {
+            return 0;
+        }
+        if (keyType != null && keyType.startsWith("ecdsa-")) {
+            return 1;
+        }
+        if (KeyPairProvider.SSH_RSA.equals(keyType)) {
+            return 2;
+        }
+        return 3;
+    }
+}
@@ -0,0 +1,321 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.rowland.jinix.exec.InvalidExecutableException;
+import org.rowland.jinix.io.JinixFileDescriptor;
+import org.rowland.jinix.io.JinixFileInputStream;
+import org.rowland.jinix.io.JinixFileOutputStream;
+import org.rowland.jinix.lang.JinixPipe;
+import org.rowland.jinix.lang.JinixRuntime;
+import org.rowland.jinix.proc.ProcessManager;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A sshd server Command that runs a single non-interactive command (ssh host cmd). The command is exec'd on
+ * plain pipes, with no terminal, and the channel's stdin, stdout and stderr are pumped to and from those pipes
+ * in blocks. The exit status of the process is returned to the client.
+ */
+class JinixExecCommand implements Command {
+
+    private static final int BUFFER_SIZE = 32768;
+    private static final long MIN_EXIT_POLL_INTERVAL = 10; // milliseconds
+    private static final long MAX_EXIT_POLL_INTERVAL = 1000; // milliseconds
+
+    private final String command;
+    private InputStream in;
+    private OutputStream out;
+    private OutputStream err;
+    private ExitCallback exitCallback;
+
+    private volatile int pid = -1;
+    private volatile boolean exited = false;
+    private int exitStatus = 1; // set before exited
+    private final AtomicInteger openOutputs = new AtomicInteger(2);
+    private SessionMetrics metrics;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    JinixExecCommand(String command) {
+        this.command = command;
+    }
+
+    @Override
+    public void start(ChannelSession channelSession, Environment env) throws IOException {
+        List<String> argv = parseCommandLine(command);
+        if (argv.isEmpty()) {
+            err.write("No command\n".getBytes());
+            err.flush();
+            exitCallback.onExit(1);
+            return;
+        }
+
+        JinixPipe stdin = null;
+        JinixPipe stdout = null;
+        JinixPipe stderr = null;
+        boolean started = false;
+        Sshd.admissionControl.acquireSetup();
+        try {
+            metrics = Sshd.metrics.openSession("exec " + channelSession.getSession().getClientAddress());
+            long setupStart = System.nanoTime();
+
+            stdin = JinixRuntime.getRuntime().pipe();
+            stdout = JinixRuntime.getRuntime().pipe();
+            stderr = JinixRuntime.getRuntime().pipe();
+
+            started = exec(argv, env, stdin, stdout, stderr);
+            if (started) {
+                metrics.setupComplete(System.nanoTime() - setupStart);
+            }
+        } catch (IOException | RuntimeException e) {
+            Sshd.metrics.sessionSetupFailed();
+            close();
+            throw e;
+        } finally {
+            closePipes(started, stdin, stdout, stderr);
+            Sshd.admissionControl.releaseSetup();
+        }
+        if (!started) {
+            Sshd.metrics.sessionSetupFailed();
+            close();
+            err.write((argv.get(0) + ": command not found\n").getBytes());
+            err.flush();
+            exitCallback.onExit(127);
+            return;
+        }
+
+        // The channel input reports its end. A pipe may not, so its pump also ends once the process has exited.
+        OutputStream processIn = new JinixFileOutputStream(stdin.getOutputFileDescriptor());
+        Sshd.sessionIoEngine.start(new StreamPump("Exec Input Thread", in, processIn, BUFFER_SIZE,
+                metrics::input, () -> false, failure -> closeQuietly(processIn)));
+        Sshd.sessionIoEngine.start(new StreamPump("Exec Output Thread",
+                new JinixFileInputStream(stdout.getInputFileDescriptor()), out, BUFFER_SIZE,
+                metrics::output, this::hasExited, this::outputFinished));
+        Sshd.sessionIoEngine.start(new StreamPump("Exec Error Thread",
+                new JinixFileInputStream(stderr.getInputFileDescriptor()), err, BUFFER_SIZE,
+                metrics::output, this::hasExited, this::outputFinished));
+    }
+
+    /**
+     * Exec the command on the given pipes.
+     *
+     * @return false if the command could not be found
+     */
+    private boolean exec(List<String> argv, Environment env, JinixPipe stdin, JinixPipe stdout, JinixPipe stderr)
+            throws IOException {
+        Properties envProps = Sshd.environmentCache.createEnvironment();
+        envProps.put("jinix.terminal.logname", env.getEnv().get(Environment.ENV_USER));
+
+        long execStart = System.nanoTime();
+        try {
+            pid = JinixRuntime.getRuntime().exec(envProps,
+                    resolveExecutable(argv.get(0)),
+                    argv.subList(1, argv.size()).toArray(new String[0]),
+                    -1, -1,
+                    stdin.getInputFileDescriptor(), stdout.getOutputFileDescriptor(), stderr.getOutputFileDescriptor());
+        } catch (FileNotFoundException | InvalidExecutableException e) {
+            return false;
+        }
+        Sshd.metrics.remoteCall("ExecServer.exec").record(System.nanoTime() - execStart);
+        return true;
+    }
+
+    /**
+     * Close the child's ends of the pipes, as the child holds its own copies of them, and, if the child did not
+     * start, sshd's ends too. Any pipe not yet created is null.
+     */
+    private static void closePipes(boolean started, JinixPipe stdin, JinixPipe stdout, JinixPipe stderr) {
+        if (stdin != null) {
+            closeQuietly(stdin.getInputFileDescriptor());
+            if (!started) {
+                closeQuietly(stdin.getOutputFileDescriptor());
+            }
+        }
+        for (JinixPipe output : new JinixPipe[] {stdout, stderr}) {
+            if (output != null) {
+                closeQuietly(output.getOutputFileDescriptor());
+                if (!started) {
+                    closeQuietly(output.getInputFileDescriptor());
+                }
+            }
+        }
+    }
+
+    /**
+     * Called as the stdout and stderr pumps finish. Once both pipes are closed the process has exited, or has
+     * closed its outputs, so poll for its exit and return its exit status. A process that closes its outputs may
+     * keep running for as long as it likes, so it is polled, with a back off, rather than waited for on a thread.
+     */
+    private void outputFinished(IOException failure) {
+        if (failure != null) {
+            Sshd.log.warn("Exec output failed: " + failure.getMessage());
+        }
+        if (openOutputs.decrementAndGet() > 0) {
+            return;
+        }
+        pollExit(MIN_EXIT_POLL_INTERVAL);
+    }
+
+    /**
+     * Report the exit status if the process has exited, or check again after the given interval. The check runs on
+     * a session setup thread, and does not block.
+     */
+    private void pollExit(long interval) {
+        if (!hasExited()) {
+            try {
+                Sshd.scheduler.schedule(() -> {
+                    try {
+                        Sshd.sessionSetupExecutor.execute(
+                                () -> pollExit(Math.min(interval * 2, MAX_EXIT_POLL_INTERVAL)));
+                    } catch (RejectedExecutionException e) {
+                        exitUnknown();
+                    }
+                }, interval, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                exitUnknown();
+            }
+            return;
+        }
+        close();
+        exitCallback.onExit(exitStatus);
+    }
+
+    /**
+     * Called when sshd is shutting down before the process has exited.
+     */
+    private void exitUnknown() {
+        close();
+        exitCallback.onExit(1);
+    }
+
+    /**
+     * @return whether the process has exited, in which case its exit status has been collected
+     */
+    private synchronized boolean hasExited() {
+        if (!exited) {
+            try {
+                ProcessManager.ChildWaitObject child = Sshd.metrics.time("ProcessManager.waitForChild",
+                        () -> JinixRuntime.getRuntime().waitForChild(pid, true));
+                if (child != null) {
+                    exitStatus = child.getExitStatus();
+                    exited = true;
+                }
+            } catch (RuntimeException e) {
+                Sshd.log.error("Failed to wait for exec process " + pid, e);
+                exited = true;
+            }
+        }
+        return exited;
+    }
+
+    private void close() {
+        if (closed.compareAndSet(false, true) && metrics != null) {
+            Sshd.metrics.closeSession(metrics);
+        }
+    }
+
+    @Override
+    public void destroy(ChannelSession channelSession) throws Exception {
+        close();
+        if (pid > 0 && !exited) {
+            Sshd.processManager.sendSignal(pid, ProcessManager.Signal.TERMINATE);
+        }
+    }
+
+    @Override
+    public void setInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public void setOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void setErrorStream(OutputStream err) {
+        this.err = err;
+    }
+
+    @Override
+    public void setExitCallback(ExitCallback callback) {
+        this.exitCallback = callback;
+    }
+
+    /**
+     * Jinix executables are jar files in /bin. A command given without a path is looked up there.
+     */
+    private static String resolveExecutable(String name) {
+        if (name.indexOf('/') >= 0) {
+            return name;
+        }
+        return "/bin/" + (name.endsWith(".jar") ? name : name + ".jar");
+    }
+
+    /**
+     * Split a command line into arguments on whitespace, honouring single quotes, double quotes and
+     * backslash escapes.
+     */
+    static List<String> parseCommandLine(String commandLine) {
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = new StringBuilder();
+        boolean inArg = false;
+        char quote = 0;
+        for (int i = 0; i < commandLine.length(); i++) {
+            char c = commandLine.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else if (c == '\\' && quote == '"' && i + 1 < commandLine.length()) {
+                    arg.append(commandLine.charAt(++i));
+                } else {
+                    arg.append(c);
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                inArg = true;
+            } else if (c == '\\' && i + 1 < commandLine.length()) {
+                arg.append(commandLine.charAt(++i));
+                inArg = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inArg) {
+                    args.add(arg.toString());
+                    arg.setLength(0);
+                    inArg = false;
+                }
+            } else {
+                arg.append(c);
+                inArg = true;
+            }
+        }
+        if (inArg) {
+            args.add(arg.toString());
+        }
+        return args;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            // Nothing more to do
+        }
+    }
+
+    private static void closeQuietly(JinixFileDescriptor fd) {
+        try {
+            fd.close();
+        } catch (RuntimeException e) {
+            Sshd.log.warn("Failed to close an exec pipe: " + e.getMessage());
+        }
+    }
+}
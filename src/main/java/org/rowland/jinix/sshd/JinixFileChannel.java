@@ -0,0 +1,486 @@
+package org.rowland.jinix.sshd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A SeekableByteChannel over a Jinix file, for file transfers. The file stream stays open for the life of the
+ * channel, and both directions go through a large pooled buffer, so that a client sending many small pipelined
+ * requests costs one round trip to the Jinix file server per buffer rather than one per request.
+ *
+ * Jinix file streams can not seek. Reads at any offset are supported (backward seeks re-open the file). Writes
+ * are cheapest when sequential, which is how sftp and scp clients send files. A client with several writes in
+ * flight may send them a little out of order, so a write over bytes still in the write buffer changes them there,
+ * and a write a little ahead of the others is held until the writes before it arrive. Anything further out is
+ * still written: a write past the end of the file fills the gap with zeros, and a write over bytes already in the
+ * file builds the new content in a temporary file, from the file and the writes, and renames it over the file, as
+ * a Jinix output stream can only truncate or append. The file itself is never truncated in place.
+ */
+class JinixFileChannel implements SeekableByteChannel {
+
+    private final FileHost fileHost;
+    private final String path;
+    private final BufferPool bufferPool;
+    private final boolean readable;
+    private final boolean writable;
+    private final boolean append;
+    private boolean open = true;
+    private long position = 0;
+
+    // Read side: buffer holds the file bytes [bufferOffset, bufferOffset + bufferLength), and input is positioned
+    // at bufferOffset + bufferLength.
+    private InputStream input;
+    private byte[] readBuffer;
+    private long bufferOffset = 0;
+    private int bufferLength = 0;
+
+    // Write side: writeBuffer holds writeLength bytes that belong at file offset writeOffset, and output is
+    // positioned at writeOffset.
+    private OutputStream output;
+    private byte[] writeBuffer;
+    private long writeOffset = 0;
+    private int writeLength = 0;
+
+    // Writes ahead of the write buffer, by file offset, held until the writes before them arrive. None overlap.
+    private final TreeMap<Long, byte[]> ahead = new TreeMap<>();
+    private int aheadBytes = 0;
+
+    // While the file is being rewritten: output goes to rewritePath, which replaces the file when done, and the
+    // file supplies the bytes that are not overwritten. source is positioned at sourceOffset.
+    private String rewritePath;
+    private InputStream source;
+    private long sourceOffset = 0;
+    private long sourceLength = 0;
+
+    JinixFileChannel(FileHost fileHost, String path, Set<? extends OpenOption> options, BufferPool bufferPool)
+            throws IOException {
+        this.fileHost = fileHost;
+        this.path = path;
+        this.bufferPool = bufferPool;
+        this.append = options.contains(StandardOpenOption.APPEND);
+        this.writable = options.contains(StandardOpenOption.WRITE) || append;
+        this.readable = options.contains(StandardOpenOption.READ) || !writable;
+        boolean truncate = options.contains(StandardOpenOption.TRUNCATE_EXISTING) ||
+                options.contains(StandardOpenOption.CREATE_NEW) ||
+                (options.contains(StandardOpenOption.CREATE) && !fileHost.exists(path));
+
+        if (options.contains(StandardOpenOption.CREATE_NEW) && fileHost.exists(path)) {
+            throw new FileAlreadyExistsException(path);
+        }
+        if (writable && truncate) {
+            // Truncate, or create, the file now, as the client expects to see it even if nothing is written.
+            output = fileHost.openOutput(path, false);
+            writeBuffer = bufferPool.acquire();
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        checkOpen();
+        if (!readable) {
+            throw new NonReadableChannelException();
+        }
+        if (source != null) {
+            // The file is only complete once the rewrite replaces it.
+            finishOutput();
+        } else if (output != null) {
+            writeAhead(true);
+            flushWrites();
+        }
+        if (position < bufferOffset || position > bufferOffset + bufferLength) {
+            seekInput(position);
+            if (position != bufferOffset) {
+                return -1; // position is past the end of the file
+            }
+        }
+        if (position == bufferOffset + bufferLength) {
+            if (!fillReadBuffer()) {
+                return -1;
+            }
+        }
+        int start = (int) (position - bufferOffset);
+        int n = Math.min(dst.remaining(), bufferLength - start);
+        dst.put(readBuffer, start, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        checkOpen();
+        if (!writable) {
+            throw new NonWritableChannelException();
+        }
+        if (append) {
+            position = (output != null ? writeEnd() : fileHost.length(path));
+        }
+        int n = src.remaining();
+        if (output != null && position > writeOffset + writeLength && hold(position, src)) {
+            position += n;
+            discardReadAhead();
+            return n;
+        }
+        if (output != null && (position < writeOffset || position > writeOffset + writeLength)) {
+            writeAhead(true);
+        }
+        if (output == null || position < writeOffset || position > writeOffset + writeLength) {
+            seekOutput(position);
+        }
+        writeBuffered(position, src);
+        writeAhead(false);
+        position += n;
+        discardReadAhead();
+        return n;
+    }
+
+    /**
+     * Anything read ahead may be stale after a write.
+     */
+    private void discardReadAhead() throws IOException {
+        if (input != null) {
+            input.close();
+            input = null;
+            bufferOffset = 0;
+            bufferLength = 0;
+        }
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        checkOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        checkOpen();
+        long size = fileHost.length(path);
+        if (output != null) {
+            size = Math.max(size, Math.max(writeEnd(), sourceLength));
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel truncate(long size) throws IOException {
+        checkOpen();
+        if (size < size()) {
+            throw new IOException("Truncating " + path + " is not supported");
+        }
+        return this;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            finishOutput();
+        } finally {
+            if (input != null) {
+                input.close();
+            }
+            bufferPool.release(readBuffer);
+            bufferPool.release(writeBuffer);
+            readBuffer = null;
+            writeBuffer = null;
+        }
+    }
+
+    /**
+     * @return the end of what has been written, including any writes held ahead
+     */
+    private long writeEnd() {
+        long end = writeOffset + writeLength;
+        if (!ahead.isEmpty()) {
+            Map.Entry<Long, byte[]> last = ahead.lastEntry();
+            end = Math.max(end, last.getKey() + last.getValue().length);
+        }
+        return end;
+    }
+
+    /**
+     * Hold a write that starts past the write buffer, if it is within a buffer's length of it, there is room to
+     * hold it, and it does not overlap a write already held.
+     *
+     * @return whether the write was held
+     */
+    private boolean hold(long offset, ByteBuffer src) {
+        int n = src.remaining();
+        if (offset - (writeOffset + writeLength) > writeBuffer.length || aheadBytes + n > writeBuffer.length) {
+            return false;
+        }
+        Map.Entry<Long, byte[]> before = ahead.floorEntry(offset + n - 1);
+        if (before != null && before.getKey() + before.getValue().length > offset) {
+            return false;
+        }
+        byte[] data = new byte[n];
+        src.get(data);
+        ahead.put(offset, data);
+        aheadBytes += n;
+        return true;
+    }
+
+    /**
+     * Move the writes held ahead into the output once the writes before them have arrived, or, if all is set,
+     * now, filling any gap before them. Bytes of a held write that a later write has already covered are not
+     * written, as the later write wins.
+     */
+    private void writeAhead(boolean all) throws IOException {
+        while (!ahead.isEmpty()) {
+            long offset = ahead.firstKey();
+            long end = writeOffset + writeLength;
+            if (offset > end) {
+                if (!all) {
+                    return;
+                }
+                fillOutput(offset);
+                end = offset;
+            }
+            byte[] data = ahead.pollFirstEntry().getValue();
+            aheadBytes -= data.length;
+            long covered = end - offset;
+            if (covered < data.length) {
+                writeBuffered(end, ByteBuffer.wrap(data, (int) covered, data.length - (int) covered));
+            }
+        }
+    }
+
+    /**
+     * Write at an offset within the write buffer, or at its end.
+     */
+    private void writeBuffered(long offset, ByteBuffer src) throws IOException {
+        int start = (int) (offset - writeOffset);
+        while (src.hasRemaining()) {
+            if (start == writeBuffer.length) {
+                flushWrites();
+                start = 0;
+            }
+            int chunk = Math.min(src.remaining(), writeBuffer.length - start);
+            src.get(writeBuffer, start, chunk);
+            start += chunk;
+            writeLength = Math.max(writeLength, start);
+        }
+    }
+
+    /**
+     * Position the output at the given offset. Moving forward fills the gap, from the file while it is being
+     * rewritten and with zeros past its end. Moving back, or starting to write before the end of the file,
+     * finishes the output so far and starts a rewrite.
+     */
+    private void seekOutput(long offset) throws IOException {
+        if (output != null && offset >= writeOffset + writeLength) {
+            fillOutput(offset);
+            return;
+        }
+        finishOutput();
+        if (writeBuffer == null) {
+            writeBuffer = bufferPool.acquire();
+        }
+        long length = fileHost.length(path);
+        if (offset >= length) {
+            output = fileHost.openOutput(path, true);
+            writeOffset = length;
+        } else {
+            rewritePath = path + ".rewrite-" + Long.toHexString(System.nanoTime());
+            source = fileHost.openInput(path);
+            sourceOffset = 0;
+            sourceLength = length;
+            try {
+                output = fileHost.openOutput(rewritePath, false);
+            } catch (IOException e) {
+                closeQuietly(source);
+                source = null;
+                rewritePath = null;
+                throw e;
+            }
+            writeOffset = 0;
+        }
+        writeLength = 0;
+        fillOutput(offset);
+    }
+
+    /**
+     * Write up to the given offset, from the file while it is being rewritten and with zeros past its end.
+     */
+    private void fillOutput(long offset) throws IOException {
+        while (writeOffset + writeLength < offset) {
+            if (writeLength == writeBuffer.length) {
+                flushWrites();
+            }
+            long end = writeOffset + writeLength;
+            int chunk = (int) Math.min(offset - end, writeBuffer.length - writeLength);
+            if (source != null && end < sourceLength) {
+                skipSource(end);
+                chunk = source.read(writeBuffer, writeLength, (int) Math.min(chunk, sourceLength - end));
+                if (chunk < 0) {
+                    throw new IOException(path + " ended early at offset " + end + " while being rewritten");
+                }
+                sourceOffset += chunk;
+            } else {
+                Arrays.fill(writeBuffer, writeLength, writeLength + chunk, (byte) 0);
+            }
+            writeLength += chunk;
+        }
+    }
+
+    private void skipSource(long offset) throws IOException {
+        while (sourceOffset < offset) {
+            long skipped = source.skip(offset - sourceOffset);
+            if (skipped <= 0) {
+                // skip() may stop short for no reason, so read a byte to tell that from the end of the file.
+                if (source.read() < 0) {
+                    throw new IOException(path + " ended early at offset " + sourceOffset + " while being rewritten");
+                }
+                skipped = 1;
+            }
+            sourceOffset += skipped;
+        }
+    }
+
+    /**
+     * Write what is buffered or held, and the rest of the file if it is being rewritten, and close the output. A
+     * rewrite then replaces the file. If anything fails the file is left as it was before the rewrite.
+     */
+    private void finishOutput() throws IOException {
+        if (output == null) {
+            return;
+        }
+        boolean finished = false;
+        try {
+            writeAhead(true);
+            if (source != null) {
+                fillOutput(sourceLength);
+            }
+            flushWrites();
+            output.close();
+            if (source != null && !fileHost.rename(rewritePath, path)) {
+                throw new IOException("Failed to replace " + path + " with its rewrite " + rewritePath);
+            }
+            finished = true;
+        } finally {
+            if (!finished) {
+                closeQuietly(output);
+            }
+            output = null;
+            writeOffset = 0;
+            writeLength = 0;
+            ahead.clear();
+            aheadBytes = 0;
+            if (source != null) {
+                closeQuietly(source);
+                source = null;
+                sourceOffset = 0;
+                sourceLength = 0;
+                if (!finished && !fileHost.delete(rewritePath)) {
+                    Sshd.log.warn("Failed to delete " + rewritePath);
+                }
+                rewritePath = null;
+            }
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // Already failing, the first failure is the one reported
+        }
+    }
+
+    private void flushWrites() throws IOException {
+        if (writeLength > 0) {
+            output.write(writeBuffer, 0, writeLength);
+            output.flush();
+            writeOffset += writeLength;
+            writeLength = 0;
+        }
+    }
+
+    /**
+     * Position the input stream at the given offset. A short forward seek reads through the gap, anything else
+     * re-opens the file.
+     */
+    private void seekInput(long offset) throws IOException {
+        long inputOffset = bufferOffset + bufferLength;
+        if (input == null || offset < inputOffset || offset - inputOffset > bufferPool.getBufferSize()) {
+            if (input != null) {
+                input.close();
+            }
+            input = fileHost.openInput(path);
+            inputOffset = 0;
+        }
+        while (inputOffset < offset) {
+            long skipped = input.skip(offset - inputOffset);
+            if (skipped <= 0) {
+                break;
+            }
+            inputOffset += skipped;
+        }
+        bufferOffset = inputOffset;
+        bufferLength = 0;
+    }
+
+    /**
+     * Read the next block of the file into the read buffer.
+     *
+     * @return false at end of file
+     */
+    private boolean fillReadBuffer() throws IOException {
+        if (input == null) {
+            seekInput(position);
+            if (position != bufferOffset) {
+                return false;
+            }
+        }
+        if (readBuffer == null) {
+            readBuffer = bufferPool.acquire();
+        }
+        bufferOffset += bufferLength;
+        bufferLength = 0;
+        while (bufferLength < readBuffer.length) {
+            int n = input.read(readBuffer, bufferLength, readBuffer.length - bufferLength);
+            if (n < 0) {
+                break;
+            }
+            bufferLength += n;
+        }
+        return bufferLength > 0;
+    }
+
+    private void checkOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
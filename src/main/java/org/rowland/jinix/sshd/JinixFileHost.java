@@ -0,0 +1,45 @@
+package org.rowland.jinix.sshd;
+
+import org.rowland.jinix.io.JinixFile;
+import org.rowland.jinix.io.JinixFileInputStream;
+import org.rowland.jinix.io.JinixFileOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The FileHost used when sshd runs on Jinix, with files served by the Jinix file server.
+ */
+class JinixFileHost implements FileHost {
+
+    @Override
+    public boolean exists(String path) {
+        return new JinixFile(path).exists();
+    }
+
+    @Override
+    public long length(String path) {
+        return new JinixFile(path).length();
+    }
+
+    @Override
+    public boolean delete(String path) {
+        return new JinixFile(path).delete();
+    }
+
+    @Override
+    public boolean rename(String from, String to) {
+        return new JinixFile(from).renameTo(new JinixFile(to));
+    }
+
+    @Override
+    public InputStream openInput(String path) throws IOException {
+        return new JinixFileInputStream(new JinixFile(path));
+    }
+
+    @Override
+    public OutputStream openOutput(String path, boolean append) throws IOException {
+        return new JinixFileOutputStream(new JinixFile(path), append);
+    }
+}
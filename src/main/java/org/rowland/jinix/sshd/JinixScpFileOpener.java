@@ -0,0 +1,295 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.util.threads.CloseableExecutorService;
+import org.apache.sshd.common.util.threads.ThreadUtils;
+import org.apache.sshd.scp.common.helpers.DefaultScpFileOpener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Serves scp file reads and writes from the Jinix file server in large pooled blocks. Each file is read or written
+ * by a task of its own, a few blocks ahead of or behind the scp command, so that the round trips to the Jinix file
+ * server overlap with the transfer over the network rather than stall it. Directories, recursion and file
+ * attributes are left to the default opener.
+ */
+class JinixScpFileOpener extends DefaultScpFileOpener {
+
+    private static final int PIPELINE_DEPTH = 4; // blocks queued between the scp command and the file task
+
+    private final BufferPool bufferPool;
+    private final CloseableExecutorService fileTasks = ThreadUtils.newCachedThreadPool("ScpFileTask");
+
+    JinixScpFileOpener(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public InputStream openRead(Session session, Path file, long size, Set<PosixFilePermission> permissions,
+                                OpenOption... options) throws IOException {
+        return new ReadAheadInputStream(Sshd.fileHost.openInput(toPath(file)));
+    }
+
+    @Override
+    public OutputStream openWrite(Session session, Path file, long size, Set<PosixFilePermission> permissions,
+                                  OpenOption... options) throws IOException {
+        return new WriteBehindOutputStream(Sshd.fileHost.openOutput(toPath(file), false), file);
+    }
+
+    private static String toPath(Path file) {
+        return file.toAbsolutePath().toString();
+    }
+
+    /**
+     * A block of file data, or, with a negative length, the end of the file.
+     */
+    private static class Block {
+        static final Block END = new Block(null, -1);
+
+        final byte[] data;
+        final int length;
+
+        Block(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Collects what scp receives into full blocks, and hands them to a task that writes them to the file. A write
+     * blocks only when the file task is a whole pipeline of blocks behind. A failure to write the file is
+     * reported by the next write, or by close, which waits for the file to be written and closed.
+     */
+    private class WriteBehindOutputStream extends OutputStream {
+        private final Path file;
+        private final BlockingQueue<Block> blocks = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+        private final Future<?> writer;
+        private volatile IOException failure;
+        private byte[] buffer;
+        private int length;
+        private boolean closed;
+
+        WriteBehindOutputStream(OutputStream output, Path file) {
+            this.file = file;
+            this.buffer = bufferPool.acquire();
+            this.writer = fileTasks.submit(() -> writeBlocks(output));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (len > 0) {
+                int chunk = Math.min(len, buffer.length - length);
+                System.arraycopy(b, off, buffer, length, chunk);
+                length += chunk;
+                off += chunk;
+                len -= chunk;
+                if (length == buffer.length) {
+                    handOff();
+                    buffer = bufferPool.acquire();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (length > 0 && failure == null) {
+                    blocks.put(new Block(buffer, length));
+                } else {
+                    bufferPool.release(buffer);
+                }
+                buffer = null;
+                blocks.put(Block.END);
+                writer.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                writer.cancel(true);
+                throw new InterruptedIOException("Interrupted writing " + file);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to write " + file, e.getCause());
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void handOff() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            put(new Block(buffer, length));
+            length = 0;
+        }
+
+        private void put(Block block) throws IOException {
+            try {
+                blocks.put(block);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted writing " + file);
+            }
+        }
+
+        /**
+         * Runs on a file task. After a failure the remaining blocks are still taken, so that scp is never left
+         * waiting for room in the queue.
+         */
+        private void writeBlocks(OutputStream output) {
+            try {
+                for (Block block = blocks.take(); block != Block.END; block = blocks.take()) {
+                    try {
+                        if (failure == null) {
+                            output.write(block.data, 0, block.length);
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                    } finally {
+                        bufferPool.release(block.data);
+                    }
+                }
+            } catch (InterruptedException e) {
+                failure = new InterruptedIOException("Interrupted writing " + file);
+            } finally {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the file into full blocks on a file task, up to a pipeline of blocks ahead of what scp has sent.
+     */
+    private class ReadAheadInputStream extends InputStream {
+        private final BlockingQueue<Block> blocks = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+        private volatile boolean closed;
+        private volatile IOException failure;
+        private Block current;
+        private int position;
+
+        ReadAheadInputStream(InputStream input) {
+            fileTasks.execute(() -> readBlocks(input));
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (current == null || (current != Block.END && position == current.length)) {
+                if (current != null) {
+                    bufferPool.release(current.data);
+                }
+                try {
+                    current = blocks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                position = 0;
+            }
+            if (current == Block.END) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return -1;
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current.data, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        /**
+         * Stops the file task. Taking what it has queued frees it to notice the close, if it was waiting for room.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (current != null) {
+                bufferPool.release(current.data);
+                current = null;
+            }
+            for (Block block = blocks.poll(); block != null; block = blocks.poll()) {
+                bufferPool.release(block.data);
+            }
+        }
+
+        /**
+         * Runs on a file task.
+         */
+        private void readBlocks(InputStream input) {
+            try (InputStream in = input) {
+                while (!closed) {
+                    byte[] buffer = bufferPool.acquire();
+                    int length = 0;
+                    while (length < buffer.length) {
+                        int n = in.read(buffer, length, buffer.length - length);
+                        if (n < 0) {
+                            break;
+                        }
+                        length += n;
+                    }
+                    if (length > 0) {
+                        blocks.put(new Block(buffer, length));
+                    } else {
+                        bufferPool.release(buffer);
+                    }
+                    if (length < buffer.length) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                failure = new InterruptedIOException();
+            }
+            if (!closed) {
+                try {
+                    blocks.put(Block.END);
+                } catch (InterruptedException e) {
+                    // Nothing is waiting for the end after an interrupt
+                }
+            }
+        }
+    }
+}
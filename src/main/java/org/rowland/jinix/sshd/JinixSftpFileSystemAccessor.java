@@ -0,0 +1,33 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.server.FileHandle;
+import org.apache.sshd.sftp.server.SftpFileSystemAccessor;
+import org.apache.sshd.sftp.server.SftpSubsystemProxy;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.util.Set;
+
+/**
+ * Serves sftp file reads and writes from the Jinix file server through a JinixFileChannel. Directory listing and
+ * attribute requests use the default accessor.
+ */
+class JinixSftpFileSystemAccessor implements SftpFileSystemAccessor {
+
+    private final BufferPool bufferPool;
+
+    JinixSftpFileSystemAccessor(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public SeekableByteChannel openFile(ServerSession session, SftpSubsystemProxy subsystem, FileHandle fileHandle,
+                                        Path file, String handle, Set<? extends OpenOption> options,
+                                        FileAttribute<?>... attrs) throws IOException {
+        return new JinixFileChannel(Sshd.fileHost, file.toAbsolutePath().toString(), options, bufferPool);
+    }
+}
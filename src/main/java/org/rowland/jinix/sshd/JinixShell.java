@@ -10,26 +10,24 @@ import org.apache.sshd.server.channel.PuttyRequestHandler;
 import org.apache.sshd.server.command.Command;
 import org.apache.sshd.server.session.ServerSession;
 
-import org.rowland.jinix.exec.InvalidExecutableException;
-import org.rowland.jinix.io.JinixFile;
-import org.rowland.jinix.io.JinixFileDescriptor;
-import org.rowland.jinix.io.JinixFileInputStream;
-import org.rowland.jinix.io.JinixFileOutputStream;
-import org.rowland.jinix.lang.JinixRuntime;
-import org.rowland.jinix.lang.JinixSystem;
 import org.rowland.jinix.proc.ProcessManager;
 import org.rowland.jinix.terminal.*;
 
 import java.io.*;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A sshd server Command that provides a JinixShell (jsh).
  */
 public class JinixShell implements Command, SessionAware {
 
-    private static int debugInc = 0;
+    private static final int DEFAULT_INTERRUPT_CHARACTER = 3; // ^C
+    private static final int DEFAULT_SUSPEND_CHARACTER = 26; // ^Z
+    private static final long FOREGROUND_GROUP_MAX_AGE = TimeUnit.SECONDS.toNanos(1); // as a job may end on its own
+
     private int shellPid;
     private ServerSession session;
     private InputStream in;
@@ -39,315 +37,421 @@ public class JinixShell implements Command, SessionAware {
 
     private OutputStream shellIn;
     private InputStream shellOut;
-    private OutputThread outputThread = null;
-    private InputThread inputThread = null;
+    private ShellOutputPump outputPump = null;
+    private ShellInputPump inputPump = null;
+    private final OutputGovernor outputGovernor;
+    private int interruptCharacter = -1;
+    private int suspendCharacter = -1;
+
+    // Counts the blocks of input that may have started, stopped or ended a job, and so changed the terminal or its
+    // foreground process group.
+    // Only the input pump counts.
+    private volatile long jobChanges = 0;
+    // Whether the terminal takes the interrupt character as an interrupt, as of jobChanges == interruptModeChanges.
+    // Only used by the input pump once it has started.
+    private boolean interruptEnabled;
+    private long interruptModeChanges = -1;
 
     private Environment env;
     private short terminalId;
+    private ShellHost.TerminalEnd master;
+
+    private final AtomicBoolean resizePending = new AtomicBoolean();
+    private int columns;
+    private int lines;
+    // The terminal's foreground process group as of jobChanges == foregroundGroupChanges, looked up at
+    // foregroundGroupTime. Guarded by this once the session has started.
+    private int foregroundProcessGroupId = -1;
+    private long foregroundGroupChanges = -1;
+    private long foregroundGroupTime;
+
+    private SessionMetrics metrics;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicBoolean terminalReleased = new AtomicBoolean();
+    private volatile boolean inputRunning;
+    private volatile boolean outputRunning;
+    private volatile boolean shellExited;
 
-    JinixShell() {
+    /**
+     * @param outputGovernor the cap on the channel output held for the client, or null
+     */
+    JinixShell(OutputGovernor outputGovernor) {
+        this.outputGovernor = outputGovernor;
     }
 
     public void start(ChannelSession channelSession, Environment env) throws IOException {
 
         this.env = env;
+        Sshd.admissionControl.acquireSetup();
+        this.metrics = Sshd.metrics.openSession("shell " + session.getClientAddress());
 
+        long setupStart = System.nanoTime();
         try {
             Map<PtyMode, Integer> modes = resolveShellTtyOptions(env.getPtyModes());
-            this.terminalId = Sshd.terminalServer.createTerminal();
-
-            TerminalAttributes termAttrs = Sshd.terminalServer.getTerminalAttributes(terminalId);
-            mapToJinixInputModes(modes, termAttrs.inputModes);
-            mapToJinixOutputModes(modes, termAttrs.outputModes);
-            mapToJinixLocalModes(modes, termAttrs.localModes);
-            mapJinixSpecialCharacters(modes, termAttrs.specialCharacterMap);
-            Sshd.terminalServer.setTerminalAttributes(terminalId, termAttrs);
-
-            Sshd.terminalServer.setTerminalSize(terminalId,
-                    Integer.parseInt(env.getEnv().get(Environment.ENV_COLUMNS)),
-                    Integer.parseInt(env.getEnv().get(Environment.ENV_LINES)));
-
-            JinixFileDescriptor masterFileDescriptor =
-                    new JinixFileDescriptor(Sshd.terminalServer.getTerminalMaster(terminalId));
-            JinixFileDescriptor slaveFileDescriptor =
-                    new JinixFileDescriptor(Sshd.terminalServer.getTerminalSlave(terminalId));
-
-            try {
+            if (Sshd.shellOutputCatchUp) {
+                interruptCharacter = modes.getOrDefault(PtyMode.VINTR, DEFAULT_INTERRUPT_CHARACTER) & 0xFF;
+            }
+            suspendCharacter = modes.getOrDefault(PtyMode.VSUSP, DEFAULT_SUSPEND_CHARACTER) & 0xFF;
+            columns = Integer.parseInt(env.getEnv().get(Environment.ENV_COLUMNS));
+            lines = Integer.parseInt(env.getEnv().get(Environment.ENV_LINES));
+
+            ShellPool.PooledShell pooledShell = (Sshd.shellPool != null ?
+                    Sshd.shellPool.claim(env.getEnv().get(Environment.ENV_TERM), env.getEnv().get(Environment.ENV_USER)) :
+                    null);
+
+            if (pooledShell != null) {
+                // The shell is already running on a terminal with default attributes and size. Apply the
+                // client's settings and let the shell know that its window has changed.
+                this.terminalId = pooledShell.terminalId;
+                this.shellPid = pooledShell.shellPid;
+                master = pooledShell.master;
+
+                setTerminalAttributes(modes);
+                Sshd.metrics.time("TermServer.setTerminalSize",
+                        () -> { Sshd.terminalServer.setTerminalSize(terminalId, columns, lines); return null; });
+                signalForegroundProcessGroup(ProcessManager.Signal.WINCH);
+            } else {
                 Properties shellEnv = new Properties();
                 shellEnv.put("jinix.terminal.term", env.getEnv().get(Environment.ENV_TERM));
                 shellEnv.put("jinix.terminal.lines",env.getEnv().get(Environment.ENV_LINES));
                 shellEnv.put("jinix.terminal.columns",env.getEnv().get(Environment.ENV_COLUMNS));
                 shellEnv.put("jinix.terminal.logname",env.getEnv().get(Environment.ENV_USER));
 
-                JinixFile environmentFile = new JinixFile("/config/environment.config");
-                Properties envProps = new Properties();
-                if (environmentFile.exists()) {
-                    try (Reader environmentFileReader = new BufferedReader(new InputStreamReader(new JinixFileInputStream(environmentFile)))) {
-                        envProps.load(environmentFileReader);
-                    }
-                } else {
-                    envProps.putAll(JinixSystem.getJinixProperties());
-                }
-                envProps.putAll(shellEnv);
-
-                //, "-agentlib:jdwp=transport=dt_socket,server=y,suspend=n,address=*:"+debugPort
-                int debugPort = 6000 + debugInc;
-                debugInc++;
-                shellPid = JinixRuntime.getRuntime().exec(envProps,
-                                                     "/bin/jsh.jar",
-                                                          new String[]{"/home"},
-                                             -1, -1,
-                                                          slaveFileDescriptor, slaveFileDescriptor, slaveFileDescriptor);
-
-                Sshd.processManager.setProcessTerminalId(shellPid, terminalId);
-                Sshd.terminalServer.linkProcessToTerminal(terminalId, shellPid);
-
-                env.addSignalListener(new WinchSignalListener(), Signal.WINCH);
-
-            } catch (FileNotFoundException | InvalidExecutableException e) {
-                throw new RuntimeException(e);
-            } finally {
-                slaveFileDescriptor.close();
+                ShellSetup setup = new ShellSetup(modes, columns, lines, shellEnv);
+                setup.run();
+                this.terminalId = setup.getTerminalId();
+                this.shellPid = setup.getShellPid();
+                master = setup.getMaster();
+                interruptModeSet(setup.getTerminalAttributes());
+                Sshd.log.debug("Session setup: " + setup.getStageTimes());
             }
 
+            env.addSignalListener(new WinchSignalListener(), Signal.WINCH);
+
             // This is confusing. The inputstream is the output from the exec'd process, and the output stream
             // is the input.
-            shellOut = new BufferedInputStream(new JinixFileInputStream(masterFileDescriptor));
-            shellIn = new JinixFileOutputStream(masterFileDescriptor);
-
-            outputThread = new OutputThread(shellOut);
-            inputThread = new InputThread(shellIn);
-
-            outputThread.start();
-            inputThread.start();
+            shellOut = master.getInputStream();
+            shellIn = master.getOutputStream();
+
+            outputPump = new ShellOutputPump(shellOut, out,
+                    Sshd.shellOutputBufferSize, Sshd.shellOutputFlushSize, Sshd.shellOutputFlushLatency,
+                    Sshd.shellOutputInteractiveWindow, Sshd.scheduler, Sshd.shellOutputFlushExecutor,
+                    metrics, outputGovernor, () -> !isShellRunning(), this::outputFinished);
+            inputPump = new ShellInputPump(in, shellIn, Sshd.shellInputBufferSize,
+                    metrics, this::inputSent, interruptCharacter, this::interruptTyped,
+                    suspendCharacter, this::jobControlSent, this::inputFinished);
+
+            metrics.setupComplete(System.nanoTime() - setupStart);
+
+            inputRunning = true;
+            outputRunning = true;
+            Sshd.sessionIoEngine.start(outputPump);
+            Sshd.sessionIoEngine.start(inputPump);
         } catch (Exception e) {
-            e.printStackTrace(System.err);
+            Sshd.log.error("Shell setup failed for " + session.getClientAddress(), e);
+            Sshd.metrics.sessionSetupFailed();
+            releaseShell();
+            close();
             throw e;
+        } finally {
+            Sshd.admissionControl.releaseSetup();
         }
     }
 
-    @Override
-    public void destroy(ChannelSession channelSession) throws Exception {
-        System.err.println("JinixShell received destroy callback.");
-        Sshd.processManager.sendSignal(shellPid, ProcessManager.Signal.HANGUP);
+    private void close() {
+        if (closed.compareAndSet(false, true)) {
+            Sshd.metrics.closeSession(metrics);
+        }
     }
 
-    @Override
-    public void setSession(ServerSession session) {
-        this.session = ValidateUtils.checkNotNull(session, "No server session");
-        System.err.println("Session set: "+session.getClientAddress());
+    /**
+     * Called when the shell has closed the terminal, or the output pump has failed.
+     */
+    private void outputFinished(IOException failure) {
+        outputRunning = false;
+        if (failure != null) {
+            // The shell may still be running, and is reaped when the channel is destroyed.
+            if (terminalReleased.get()) {
+                Sshd.log.debug("Shell output ended by release of terminal " + terminalId);
+            } else {
+                Sshd.log.warn("Shell output failed: " + failure.getMessage());
+            }
+            return;
+        }
+        Sshd.log.debug("JinixShell Jsh reading thread exiting.");
+        shellExited = true;
+        close();
+        releaseTerminal();
+
+        exitCallback.onExit(0);
     }
 
-    // for some reason these modes provide best results BOTH with Linux SSH client and PUTTY
-    protected Map<PtyMode, Integer> resolveShellTtyOptions(Map<PtyMode, Integer> modes) {
-        if (PuttyRequestHandler.isPuttyClient(session)) {
-            return PuttyRequestHandler.resolveShellTtyOptions(modes);
-        } else {
-            return modes;
-        }
+    /**
+     * Called by the input pump after each block of input is written to the shell.
+     */
+    private void inputSent() {
+        outputPump.inputReceived();
     }
 
-    public void setInputStream(InputStream in) {
-        this.in = in;
+    /**
+     * Called by the input pump after it writes a block that may have started, stopped or ended a job. The job
+     * may have changed the terminal's attributes and foreground process group, so they are read again when next
+     * needed.
+     */
+    private void jobControlSent() {
+        jobChanges++;
     }
 
-    public void setOutputStream(OutputStream out) {
-        this.out = out;
+    /**
+     * Called by the input pump before it writes a block holding the interrupt character. If the terminal still
+     * takes that character as an interrupt, rather than passing it to a program in raw mode, the output waiting
+     * in the terminal master is dropped, so the user sees the interrupt take effect without waiting for the
+     * client to catch up. The terminal's modes are only read again after a job may have changed them.
+     */
+    private void interruptTyped() {
+        try {
+            if (interruptModeChanges != jobChanges) {
+                interruptModeSet(Sshd.metrics.time("TermServer.getTerminalAttributes",
+                        () -> Sshd.terminalServer.getTerminalAttributes(terminalId)));
+            }
+            if (interruptEnabled) {
+                outputPump.discardPending();
+            }
+        } catch (IOException e) {
+            Sshd.log.debug("Output catch up failed on terminal " + terminalId + ": " + e.getMessage());
+        }
     }
 
-    public void setErrorStream(OutputStream err) {
-        this.err = err;
+    /**
+     * Note whether the terminal, with the given attributes, takes the interrupt character as an interrupt.
+     */
+    private void interruptModeSet(TerminalAttributes termAttrs) {
+        Byte intr = termAttrs.specialCharacterMap.get(SpecialCharacter.VINTR);
+        interruptEnabled = termAttrs.localModes.contains(LocalMode.ISIG) && intr != null &&
+                (intr & 0xFF) == interruptCharacter;
+        interruptModeChanges = jobChanges;
     }
 
-    public void setExitCallback(ExitCallback callback) {
-        this.exitCallback = callback;
+    private void inputFinished(IOException failure) {
+        inputRunning = false;
+        if (failure != null && !closed.get()) {
+            Sshd.log.warn("Shell input failed: " + failure.getMessage());
+        }
+        Sshd.log.debug("JinixShell channel reading thread exited.");
     }
 
-    public class WinchSignalListener implements SignalListener {
-        public void signal(Channel channel, Signal signal) {
-            System.out.println("WINCH: columns=" + env.getEnv().get(Environment.ENV_COLUMNS) + ", lines=" + env.getEnv().get(Environment.ENV_LINES));
+    /**
+     * Release the shell and terminal after a failure part way through start().
+     */
+    private void releaseShell() {
+        if (shellPid > 0) {
             try {
-                Sshd.terminalServer.setTerminalSize(terminalId,
-                        Integer.parseInt(env.getEnv().get(Environment.ENV_COLUMNS)),
-                        Integer.parseInt(env.getEnv().get(Environment.ENV_LINES))
-                );
-                int foregroundProcessGroupId = Sshd.terminalServer.getTerminalForegroundProcessGroup(terminalId);
-                JinixRuntime.getRuntime().sendSignalProcessGroup(foregroundProcessGroupId, ProcessManager.Signal.WINCH);
+                Sshd.processManager.sendSignal(shellPid, ProcessManager.Signal.HANGUP);
             } catch (RemoteException e) {
-                System.err.println("Failed processing WINCH signal");
-                e.printStackTrace(System.err);
+                Sshd.log.warn("Failed to hang up shell: " + shellPid);
             }
         }
+        releaseTerminal();
     }
 
-    private void mapToJinixInputModes(Map<PtyMode, Integer> ptyModes, Set<InputMode> termInputAttrs) {
-
-        if (ptyModes.containsKey(PtyMode.INLCR)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.INLCR)) termInputAttrs.add(InputMode.INLCR);
-            else termInputAttrs.remove(InputMode.INLCR);
-        }
-        if (ptyModes.containsKey(PtyMode.IGNCR)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.IGNCR)) termInputAttrs.add(InputMode.IGNCR);
-            else termInputAttrs.remove(InputMode.IGNCR);
-        }
-        if (ptyModes.containsKey(PtyMode.ICRNL)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.ICRNL)) termInputAttrs.add(InputMode.ICRNL);
-            else termInputAttrs.remove(InputMode.ICRNL);
-        }
-        if (ptyModes.containsKey(PtyMode.IUCLC)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.IUCLC)) termInputAttrs.add(InputMode.IUCLC);
-            else termInputAttrs.remove(InputMode.IUCLC);
+    /**
+     * Close the terminal master, and the streams on it, if that has not been done already. Once the shell has
+     * exited too, the TermServer is free to reuse the terminal.
+     *
+     * @return whether this call closed it
+     */
+    boolean releaseTerminal() {
+        if (master == null || !terminalReleased.compareAndSet(false, true)) {
+            return false;
         }
-        if (ptyModes.containsKey(PtyMode.IXON)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.IXON)) termInputAttrs.add(InputMode.IXON);
-            else termInputAttrs.remove(InputMode.IXON);
+        try {
+            if (shellOut != null) {
+                shellOut.close();
+                shellIn.close();
+            }
+        } catch (IOException e) {
+            Sshd.log.warn("Failed to close terminal " + terminalId + ": " + e.getMessage());
         }
-        if (ptyModes.containsKey(PtyMode.IXANY)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.IXANY)) termInputAttrs.add(InputMode.IXANY);
-            else termInputAttrs.remove(InputMode.IXANY);
+        master.close();
+        return true;
+    }
+
+    /**
+     * Close the channel input, which ends the input pump.
+     */
+    void closeInput() {
+        try {
+            in.close();
+        } catch (IOException e) {
+            Sshd.log.debug("Failed to close channel input: " + e.getMessage());
         }
-        if (ptyModes.containsKey(PtyMode.IXOFF)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.IXOFF)) termInputAttrs.add(InputMode.IXOFF);
-            else termInputAttrs.remove(InputMode.IXOFF);
+    }
+
+    /**
+     * @return whether the shell is still running. The output pump sees the shell exit when it reads the end of the
+     * terminal, but if the pump ended any other way the shell process itself is checked.
+     */
+    boolean isShellRunning() {
+        if (shellPid <= 0 || shellExited) {
+            return false;
         }
-        if (ptyModes.containsKey(PtyMode.IMAXBEL)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.IMAXBEL)) termInputAttrs.add(InputMode.IMAXBEL);
-            else termInputAttrs.remove(InputMode.IMAXBEL);
+        try {
+            if (Sshd.metrics.time("ProcessManager.waitForChild", () -> Sshd.shellHost.hasExited(shellPid))) {
+                shellExited = true;
+                return false;
+            }
+        } catch (RuntimeException e) {
+            Sshd.log.debug("Failed to check shell " + shellPid + ": " + e.getMessage());
         }
+        return true;
     }
 
-    private void mapToJinixOutputModes(Map<PtyMode, Integer> ptyModes, Set<OutputMode> termOutputAttrs) {
+    boolean isInputRunning() {
+        return inputRunning;
+    }
 
-        if (ptyModes.containsKey(PtyMode.OPOST)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.OPOST)) termOutputAttrs.add(OutputMode.OPOST);
-            else termOutputAttrs.remove(OutputMode.OPOST);
-        }
-        if (ptyModes.containsKey(PtyMode.OLCUC)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.OLCUC)) termOutputAttrs.add(OutputMode.OLCUC);
-            else termOutputAttrs.remove(OutputMode.OLCUC);
-        }
-        if (ptyModes.containsKey(PtyMode.ONLCR)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.ONLCR)) termOutputAttrs.add(OutputMode.ONLCR);
-            else termOutputAttrs.remove(OutputMode.ONLCR);
-        }
-        if (ptyModes.containsKey(PtyMode.OCRNL)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.OCRNL)) termOutputAttrs.add(OutputMode.OCRNL);
-            else termOutputAttrs.remove(OutputMode.OCRNL);
-        }
-        if (ptyModes.containsKey(PtyMode.ONOCR)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.ONOCR)) termOutputAttrs.add(OutputMode.ONOCR);
-            else termOutputAttrs.remove(OutputMode.ONOCR);
-        }
-        if (ptyModes.containsKey(PtyMode.ONLRET)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.ONLRET)) termOutputAttrs.add(OutputMode.ONLRET);
-            else termOutputAttrs.remove(OutputMode.ONLRET);
-        }
+    boolean isOutputRunning() {
+        return outputRunning;
     }
 
-    private void mapToJinixLocalModes(Map<PtyMode, Integer> ptyModes, Set<LocalMode> termLocalAttrs) {
-        if (ptyModes.containsKey(PtyMode.ISIG)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.ISIG)) termLocalAttrs.add(LocalMode.ISIG);
-            else termLocalAttrs.remove(LocalMode.ISIG);
-        }
-        if (ptyModes.containsKey(PtyMode.ICANON)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.ICANON)) termLocalAttrs.add(LocalMode.ICANON);
-            else termLocalAttrs.remove(LocalMode.ICANON);
-        }
-        if (ptyModes.containsKey(PtyMode.XCASE)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.XCASE)) termLocalAttrs.add(LocalMode.XCASE);
-            else termLocalAttrs.remove(LocalMode.XCASE);
-        }
-        if (ptyModes.containsKey(PtyMode.ECHO)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.ECHO)) termLocalAttrs.add(LocalMode.ECHO);
-            else termLocalAttrs.remove(LocalMode.ECHO);
-        }
-        if (ptyModes.containsKey(PtyMode.TOSTOP)) {
-            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.TOSTOP)) termLocalAttrs.add(LocalMode.TOSTOP);
-            else termLocalAttrs.remove(LocalMode.TOSTOP);
-        }
+    int getShellPid() {
+        return shellPid;
     }
 
-    private void mapJinixSpecialCharacters(Map<PtyMode, Integer> ptyModes, Map<SpecialCharacter, Byte> termAttrsChars) {
-        if (ptyModes.get(PtyMode.VINTR) != null) termAttrsChars.put(SpecialCharacter.VINTR, (byte) (0xff & ptyModes.get(PtyMode.VINTR)));
-        if (ptyModes.get(PtyMode.VQUIT) != null) termAttrsChars.put(SpecialCharacter.VQUIT, (byte) (0xff & ptyModes.get(PtyMode.VQUIT)));
-        if (ptyModes.get(PtyMode.VERASE) != null) termAttrsChars.put(SpecialCharacter.VERASE, (byte) (0xff & ptyModes.get(PtyMode.VERASE)));
-        if (ptyModes.get(PtyMode.VKILL) != null) termAttrsChars.put(SpecialCharacter.VKILL, (byte) (0xff & ptyModes.get(PtyMode.VKILL)));
-        if (ptyModes.get(PtyMode.VEOF) != null) termAttrsChars.put(SpecialCharacter.VEOF, (byte) (0xff & ptyModes.get(PtyMode.VEOF)));
-        if (ptyModes.get(PtyMode.VEOL) != null) termAttrsChars.put(SpecialCharacter.VEOL, (byte) (0xff & ptyModes.get(PtyMode.VEOL)));
-        if (ptyModes.get(PtyMode.VSUSP) != null) termAttrsChars.put(SpecialCharacter.VSUSP, (byte) (0xff & ptyModes.get(PtyMode.VSUSP)));
-        if (ptyModes.get(PtyMode.VSTOP) != null) termAttrsChars.put(SpecialCharacter.VSTOP, (byte) (0xff & ptyModes.get(PtyMode.VSTOP)));
-        if (ptyModes.get(PtyMode.VSTART) != null) termAttrsChars.put(SpecialCharacter.VSTART, (byte) (0xff & ptyModes.get(PtyMode.VSTART)));
+    String describe() {
+        return "shell " + shellPid + " on terminal " + terminalId + " for " + session.getUsername() + "@" +
+                session.getClientAddress();
     }
 
     /**
-     * Thread to read bytes from the jsh's standards output and error, and write them to the
-     * ssh channel output stream.
+     * Apply the client's modes to the terminal's current attributes, preserving anything the client did not set.
      */
-    private class OutputThread extends Thread {
+    private void setTerminalAttributes(Map<PtyMode, Integer> modes) throws RemoteException {
+        TerminalAttributes termAttrs = Sshd.metrics.time("TermServer.getTerminalAttributes",
+                () -> Sshd.terminalServer.getTerminalAttributes(terminalId));
+        TerminalAttributeTemplates.applyModes(modes, termAttrs);
+        Sshd.metrics.time("TermServer.setTerminalAttributes",
+                () -> { Sshd.terminalServer.setTerminalAttributes(terminalId, termAttrs); return null; });
+        interruptModeSet(termAttrs);
+    }
 
-        private InputStream is;
+    /**
+     * Start a jsh on the given terminal, and make the terminal the shell's controlling terminal.
+     *
+     * @return the process ID of the shell
+     */
+    static int startShell(short terminalId, Properties envProps) throws RemoteException {
+        ShellHost.TerminalEnd slave = Sshd.shellHost.openTerminalSlave(terminalId);
+        int shellPid;
+        try {
+            shellPid = Sshd.shellHost.execShell(envProps, slave);
+        } finally {
+            slave.close();
+        }
+        Sshd.processManager.setProcessTerminalId(shellPid, terminalId);
+        Sshd.terminalServer.linkProcessToTerminal(terminalId, shellPid);
+        return shellPid;
+    }
 
-        private OutputThread(InputStream input) {
-            super("Output Thread");
-            this.is = input;
+    @Override
+    public void destroy(ChannelSession channelSession) throws Exception {
+        Sshd.log.debug("JinixShell received destroy callback.");
+        close();
+        if (shellExited || master == null || terminalReleased.get()) {
+            closeInput();
+        } else {
+            Sshd.shellReaper.reap(this);
         }
+    }
 
-        @Override
-        public void run() {
-            try {
-                int n;
-                int avail = 0;
-                while ((n = is.read()) > 0) {
-                    //System.out.print(Integer.toHexString(n));
-                    try {
-                        out.write(n);
-                    } catch (IOException e) {
-                        System.err.write(n);
-                    }
-                    if (avail == 0) {
-                        avail = is.available();
-                        if (avail == 0) {
-                            out.flush();
-                            continue;
-                        }
-                    }
-                    avail--;
-                }
-                System.err.println("JinixShell Jsh reading thread exiting.");
-                shellOut.close();
-                shellIn.close();
+    @Override
+    public void setSession(ServerSession session) {
+        this.session = ValidateUtils.checkNotNull(session, "No server session");
+        Sshd.log.debug("Session set: " + session.getClientAddress());
+    }
 
-                exitCallback.onExit(0);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    // for some reason these modes provide best results BOTH with Linux SSH client and PUTTY
+    protected Map<PtyMode, Integer> resolveShellTtyOptions(Map<PtyMode, Integer> modes) {
+        if (PuttyRequestHandler.isPuttyClient(session)) {
+            return PuttyRequestHandler.resolveShellTtyOptions(modes);
+        } else {
+            return modes;
         }
     }
 
+    public void setInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    public void setOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    public void setErrorStream(OutputStream err) {
+        this.err = err;
+    }
+
+    public void setExitCallback(ExitCallback callback) {
+        this.exitCallback = callback;
+    }
+
     /**
-     * Thread to read bytes from the ssh channels input stream, and write them to the
-     * jsh's input stream.
+     * Window changes arrive in storms while a client window is dragged. Only the latest size matters, so the
+     * first change schedules a resize after the resize delay, and every change until then is coalesced into it.
+     * The resize is applied on the session setup executor, off the ssh I/O thread.
      */
-    private class InputThread extends Thread {
-
-        private OutputStream os;
+    public class WinchSignalListener implements SignalListener {
+        public void signal(Channel channel, Signal signal) {
+            if (resizePending.compareAndSet(false, true)) {
+                Sshd.scheduler.schedule(() -> Sshd.sessionSetupExecutor.execute(JinixShell.this::applyWindowSize),
+                        Sshd.resizeDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
 
-        private InputThread(OutputStream output) {
-            super("Input Thread");
-            this.os = output;
+    private synchronized void applyWindowSize() {
+        resizePending.set(false);
+        try {
+            int columns = Integer.parseInt(env.getEnv().get(Environment.ENV_COLUMNS));
+            int lines = Integer.parseInt(env.getEnv().get(Environment.ENV_LINES));
+            if (columns == this.columns && lines == this.lines) {
+                return;
+            }
+            Sshd.metrics.time("TermServer.setTerminalSize",
+                    () -> { Sshd.terminalServer.setTerminalSize(terminalId, columns, lines); return null; });
+            this.columns = columns;
+            this.lines = lines;
+            signalForegroundProcessGroup(ProcessManager.Signal.WINCH);
+        } catch (RemoteException | RuntimeException e) {
+            Sshd.log.warn("Failed processing WINCH signal", e);
         }
+    }
 
-        @Override
-        public void run() {
+    /**
+     * Send a signal to the terminal's foreground process group. The group is cached, as it only changes when a
+     * job starts or ends: it is looked up again after input that may have started, stopped or ended a job, once
+     * it is old enough that a job may have ended on its own, and when signalling it fails.
+     */
+    private void signalForegroundProcessGroup(ProcessManager.Signal signal) throws RemoteException {
+        if (foregroundProcessGroupId >= 0 && foregroundGroupChanges == jobChanges &&
+                System.nanoTime() - foregroundGroupTime < FOREGROUND_GROUP_MAX_AGE) {
             try {
-                int b;
-                while ((b = in.read()) > 0) {
-                    os.write(b);
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+                sendSignalProcessGroup(foregroundProcessGroupId, signal);
+                return;
+            } catch (RuntimeException e) {
+                // The cached group is gone.
             }
-            System.err.println("JinixShell channel reading thread exited.");
         }
+        long changes = jobChanges;
+        foregroundProcessGroupId = Sshd.metrics.time("TermServer.getTerminalForegroundProcessGroup",
+                () -> Sshd.terminalServer.getTerminalForegroundProcessGroup(terminalId));
+        foregroundGroupChanges = changes;
+        foregroundGroupTime = System.nanoTime();
+        sendSignalProcessGroup(foregroundProcessGroupId, signal);
+    }
+
+    private static void sendSignalProcessGroup(int processGroupId, ProcessManager.Signal signal) {
+        Sshd.metrics.time("ProcessManager.sendSignalProcessGroup",
+                () -> { Sshd.shellHost.sendSignalProcessGroup(processGroupId, signal); return null; });
     }
 }
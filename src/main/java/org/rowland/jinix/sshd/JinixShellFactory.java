@@ -11,6 +11,12 @@ public class JinixShellFactory implements ShellFactory {
 
     @Override
     public Command createShell(ChannelSession channelSession) {
-        return new JinixShell();
+        OutputGovernor outputGovernor = null;
+        if (Sshd.shellOutputMaxPending > 0) {
+            // Set before sshd creates the channel's output stream, which picks up its writer from the channel.
+            outputGovernor = new OutputGovernor(Sshd.shellOutputMaxPending);
+            channelSession.setChannelStreamWriterResolver(outputGovernor);
+        }
+        return new JinixShell(outputGovernor);
     }
 }
@@ -0,0 +1,84 @@
+package org.rowland.jinix.sshd;
+
+import org.rowland.jinix.exec.InvalidExecutableException;
+import org.rowland.jinix.io.JinixFileDescriptor;
+import org.rowland.jinix.io.JinixFileInputStream;
+import org.rowland.jinix.io.JinixFileOutputStream;
+import org.rowland.jinix.lang.JinixRuntime;
+import org.rowland.jinix.proc.ProcessManager;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.rmi.RemoteException;
+import java.util.Properties;
+
+/**
+ * The ShellHost used when sshd runs on Jinix, with terminal descriptors from the TermServer.
+ */
+class JinixShellHost implements ShellHost {
+
+    private static int debugInc = 0;
+
+    @Override
+    public TerminalEnd openTerminalMaster(short terminalId) throws RemoteException {
+        return new JinixTerminalEnd(new JinixFileDescriptor(Sshd.terminalServer.getTerminalMaster(terminalId)));
+    }
+
+    @Override
+    public TerminalEnd openTerminalSlave(short terminalId) throws RemoteException {
+        return new JinixTerminalEnd(new JinixFileDescriptor(Sshd.terminalServer.getTerminalSlave(terminalId)));
+    }
+
+    @Override
+    public int execShell(Properties envProps, TerminalEnd slave) {
+        JinixFileDescriptor slaveFileDescriptor = ((JinixTerminalEnd) slave).fileDescriptor;
+        try {
+            //, "-agentlib:jdwp=transport=dt_socket,server=y,suspend=n,address=*:"+debugPort
+            int debugPort = 6000 + debugInc;
+            debugInc++;
+            return JinixRuntime.getRuntime().exec(envProps,
+                                             "/bin/jsh.jar",
+                                                  new String[]{"/home"},
+                                     -1, -1,
+                                                  slaveFileDescriptor, slaveFileDescriptor, slaveFileDescriptor);
+        } catch (FileNotFoundException | InvalidExecutableException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void sendSignalProcessGroup(int processGroupId, ProcessManager.Signal signal) {
+        JinixRuntime.getRuntime().sendSignalProcessGroup(processGroupId, signal);
+    }
+
+    @Override
+    public boolean hasExited(int pid) {
+        // The shell is a child of sshd. Without waiting, there is nothing to collect while it runs.
+        return JinixRuntime.getRuntime().waitForChild(pid, true) != null;
+    }
+
+    private static class JinixTerminalEnd implements TerminalEnd {
+
+        private final JinixFileDescriptor fileDescriptor;
+
+        private JinixTerminalEnd(JinixFileDescriptor fileDescriptor) {
+            this.fileDescriptor = fileDescriptor;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new JinixFileInputStream(fileDescriptor);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new JinixFileOutputStream(fileDescriptor);
+        }
+
+        @Override
+        public void close() {
+            fileDescriptor.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.sshd.common.SshConstants;
+import org.apache.sshd.common.io.IoSession;
+import org.apache.sshd.common.util.buffer.Buffer;
+import org.apache.sshd.server.ServerFactoryManager;
+import org.apache.sshd.server.session.ServerSessionImpl;
+import org.apache.sshd.server.session.SessionFactory;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A server session that probes the client for signs of life, as the ClientAliveInterval and ClientAliveCountMax
+ * settings of OpenSSH do. Once an authenticated session has received nothing for the alive interval, a
+ * keepalive@openssh.com request is sent that every client must answer, if only with a failure. A session that
+ * has received nothing by the time the count of unanswered requests reaches the maximum is taken to have lost its
+ * client, and is closed, which tears down its channels and shells.
+ *
+ * sshd counts any packet sent or received as activity for the idle timeout, so the keepalive requests and their
+ * replies are kept out of it: the idle timeout still closes a session that is alive but unused.
+ */
+class KeepaliveSession extends ServerSessionImpl {
+
+    private static final String KEEPALIVE_REQUEST = "keepalive@openssh.com";
+
+    private final long interval;
+    private final int countMax;
+    private final ScheduledFuture<?> checker;
+
+    private volatile long lastReceived = System.nanoTime();
+    private long checkedReceived = lastReceived;
+    private int missed;
+    private final AtomicInteger unanswered = new AtomicInteger();
+    private volatile Thread keepaliveSender;
+
+    KeepaliveSession(ServerFactoryManager server, IoSession ioSession, long interval, int countMax) throws Exception {
+        super(server, ioSession);
+        this.interval = interval;
+        this.countMax = countMax;
+        this.checker = Sshd.scheduler.scheduleWithFixedDelay(this::checkAlive, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @Override
+    protected void doHandleMessage(Buffer buffer) throws Exception {
+        lastReceived = System.nanoTime();
+        int cmd = buffer.rawByte(buffer.rpos()) & 0xFF;
+        if ((cmd == SshConstants.SSH_MSG_REQUEST_SUCCESS || cmd == SshConstants.SSH_MSG_REQUEST_FAILURE) &&
+                pendingGlobalRequest.get() == null && unanswered.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            // The reply to a keepalive, which sshd has no request waiting for.
+            return;
+        }
+        super.doHandleMessage(buffer);
+    }
+
+    @Override
+    public Instant resetIdleTimeout() {
+        if (keepaliveSender == Thread.currentThread()) {
+            return getIdleTimeoutStart();
+        }
+        return super.resetIdleTimeout();
+    }
+
+    @Override
+    protected void preClose() {
+        checker.cancel(false);
+        super.preClose();
+    }
+
+    /**
+     * Runs on the sshd timer every alive interval.
+     */
+    private void checkAlive() {
+        if (!isOpen() || !isAuthenticated()) {
+            return;
+        }
+        long received = lastReceived;
+        if (received != checkedReceived) {
+            checkedReceived = received;
+            missed = 0;
+        }
+        if (System.nanoTime() - received < TimeUnit.SECONDS.toNanos(interval)) {
+            return;
+        }
+        if (missed >= countMax) {
+            Sshd.log.info("Client alive timeout for " + getUsername() + "@" + getClientAddress() + " after " +
+                    missed + " keepalives");
+            Sshd.metrics.clientAliveTimeout();
+            close(true);
+            return;
+        }
+        missed++;
+        unanswered.incrementAndGet();
+        Buffer buffer = createBuffer(SshConstants.SSH_MSG_GLOBAL_REQUEST, KEEPALIVE_REQUEST.length() + 16);
+        buffer.putString(KEEPALIVE_REQUEST);
+        buffer.putBoolean(true);
+        keepaliveSender = Thread.currentThread();
+        try {
+            writePacket(buffer);
+        } catch (IOException e) {
+            Sshd.log.debug("Keepalive to " + getClientAddress() + " failed: " + e.getMessage());
+        } finally {
+            keepaliveSender = null;
+        }
+    }
+
+    /**
+     * Creates a KeepaliveSession for each connection, in place of sshd's SessionFactory.
+     */
+    static class Factory extends SessionFactory {
+        private final long interval;
+        private final int countMax;
+
+        /**
+         * @param interval the alive interval, in seconds
+         * @param countMax the number of unanswered keepalives after which the session is closed
+         */
+        Factory(ServerFactoryManager server, long interval, int countMax) {
+            super(server);
+            this.interval = interval;
+            this.countMax = countMax;
+        }
+
+        @Override
+        protected ServerSessionImpl doCreateSession(IoSession ioSession) throws Exception {
+            return new KeepaliveSession(getServer(), ioSession, interval, countMax);
+        }
+    }
+}
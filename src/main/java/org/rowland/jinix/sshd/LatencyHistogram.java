@@ -0,0 +1,91 @@
+package org.rowland.jinix.sshd;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free latency histogram with power of two microsecond buckets. Bucket i counts latencies below 2^i
+ * microseconds, which is precise enough to tell a fast remote call from a slow one, and cheap enough to record
+ * on every call.
+ */
+class LatencyHistogram implements LatencyHistogramMXBean {
+
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        totalNanos.add(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // retry
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long n = count.sum();
+        return (n == 0 ? 0 : toMillis(totalNanos.sum() / n));
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return toMillis(maxNanos.get());
+    }
+
+    @Override
+    public double getMedianMillis() {
+        return getPercentileMillis(0.5);
+    }
+
+    @Override
+    public double get90thPercentileMillis() {
+        return getPercentileMillis(0.9);
+    }
+
+    @Override
+    public double get99thPercentileMillis() {
+        return getPercentileMillis(0.99);
+    }
+
+    double getPercentileMillis(double fraction) {
+        long n = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return (1L << i) / 1000.0;
+            }
+        }
+        return 0;
+    }
+
+    String summary() {
+        return String.format("count=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+                getCount(), getMeanMillis(), getMedianMillis(), get99thPercentileMillis(), getMaxMillis());
+    }
+
+    private static double toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos) / 1000.0;
+    }
+}
@@ -0,0 +1,19 @@
+package org.rowland.jinix.sshd;
+
+/**
+ * JMX view of a LatencyHistogram. Percentiles are the upper bound of the power of two bucket that holds them.
+ */
+public interface LatencyHistogramMXBean {
+
+    long getCount();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double getMedianMillis();
+
+    double get90thPercentileMillis();
+
+    double get99thPercentileMillis();
+}
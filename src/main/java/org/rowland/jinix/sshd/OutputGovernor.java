@@ -0,0 +1,98 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.sshd.common.channel.Channel;
+import org.apache.sshd.common.channel.throttle.ChannelStreamWriter;
+import org.apache.sshd.common.channel.throttle.ChannelStreamWriterResolver;
+import org.apache.sshd.common.channel.throttle.DefaultChannelStreamWriter;
+import org.apache.sshd.common.io.IoWriteFuture;
+import org.apache.sshd.common.util.buffer.Buffer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Caps the channel data of a shell session that has been handed to sshd but not yet written to the socket. The
+ * remote window only limits what is sent to a client, not how fast the client takes it, so a slow client lets a
+ * window's worth of packets, and the memory they take, pile up in the session's write queue.
+ *
+ * Once the cap is reached a channel write waits for the queue to drain below it, which stops the output pump,
+ * which stops reading the terminal master, and so the shell blocks on its terminal. The output pump also asks
+ * {@link #isThrottled()} before reading, so a pooled engine does not tie up one of its threads in the wait.
+ */
+class OutputGovernor implements ChannelStreamWriterResolver {
+
+    private static final long MAX_WAIT_SLICE = 100; // milliseconds
+
+    private final long maxPending;
+    private long pending = 0; // guarded by this
+
+    /**
+     * @param maxPending the most channel data to hold for the client, in bytes
+     */
+    OutputGovernor(long maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * @return whether the session is holding as much channel data as it may, so that the pump should not read
+     */
+    synchronized boolean isThrottled() {
+        return pending >= maxPending;
+    }
+
+    @Override
+    public ChannelStreamWriter resolveChannelStreamWriter(Channel channel, byte cmd) {
+        return new GovernedWriter(channel);
+    }
+
+    private synchronized void written(long bytes) {
+        pending -= bytes;
+        if (pending < maxPending) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the data held is below the cap. A closing channel fails its outstanding writes, which releases
+     * the wait, so the channel state is checked between slices of the wait in case a write future is lost.
+     */
+    private synchronized void awaitRoom(Channel channel) throws IOException {
+        if (pending < maxPending) {
+            return;
+        }
+        Sshd.metrics.outputThrottled();
+        while (pending >= maxPending && channel.isOpen()) {
+            try {
+                wait(MAX_WAIT_SLICE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the client to take output");
+            }
+        }
+    }
+
+    private class GovernedWriter extends DefaultChannelStreamWriter {
+
+        GovernedWriter(Channel channel) {
+            super(channel);
+        }
+
+        @Override
+        public IoWriteFuture writeData(Buffer buffer) throws IOException {
+            awaitRoom(channel);
+            long bytes = buffer.available();
+            synchronized (OutputGovernor.this) {
+                pending += bytes;
+            }
+            IoWriteFuture future;
+            try {
+                future = super.writeData(buffer);
+            } catch (IOException | RuntimeException e) {
+                written(bytes);
+                throw e;
+            }
+            future.addListener(f -> written(bytes));
+            return future;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.rowland.jinix.sshd;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A SessionIoEngine that runs the pumps of all sessions on a small shared pool. A pump only gets a pool thread when
+ * its source reports data available. Idle pumps are polled with a back off that starts at one millisecond and
+ * doubles up to the maximum poll interval, so a burst of activity never waits longer than that for a thread.
+ *
+ * Some sources report 0 rather than -1 available at end of stream, so a pump idle at the maximum interval is also
+ * asked, at most once per end check interval, whether its source has ended, for example because the shell behind
+ * it has exited. An idle pump never holds a thread.
+ */
+class PooledSessionIoEngine implements SessionIoEngine {
+
+    private static final long MIN_POLL_INTERVAL = 1; // milliseconds
+    private static final long END_CHECK_INTERVAL = 1000; // milliseconds
+
+    private final ScheduledThreadPoolExecutor pool;
+    private final long maxPollInterval;
+
+    PooledSessionIoEngine(int threads, long maxPollInterval) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.pool = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread t = new Thread(r, "Session I/O " + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.maxPollInterval = Math.max(MIN_POLL_INTERVAL, maxPollInterval);
+    }
+
+    @Override
+    public void start(Pump pump) {
+        pool.execute(new PumpTask(pump));
+    }
+
+    @Override
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private class PumpTask implements Runnable {
+
+        private final Pump pump;
+        private long pollInterval = 0;
+        private long lastEndCheck = System.nanoTime();
+
+        private PumpTask(Pump pump) {
+            this.pump = pump;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (pump.available() == 0) {
+                    if (pollInterval == maxPollInterval &&
+                            System.nanoTime() - lastEndCheck >= TimeUnit.MILLISECONDS.toNanos(END_CHECK_INTERVAL)) {
+                        lastEndCheck = System.nanoTime();
+                        if (pump.hasEnded()) {
+                            pump.finished(null);
+                            return;
+                        }
+                    }
+                    pollInterval = Math.min(Math.max(MIN_POLL_INTERVAL, pollInterval * 2), maxPollInterval);
+                    pool.schedule(this, pollInterval, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                pollInterval = 0;
+                if (!pump.transfer()) {
+                    pump.finished(null);
+                    return;
+                }
+                pool.execute(this);
+            } catch (IOException e) {
+                pump.finished(e);
+            } catch (RejectedExecutionException e) {
+                pump.finished(new IOException("Session I/O engine shut down", e));
+            } catch (RuntimeException e) {
+                pump.finished(new IOException(pump.getName() + " failed", e));
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.rowland.jinix.sshd;
+
+import java.io.IOException;
+
+/**
+ * Runs the pumps that move bytes between a session's ssh channel and the process behind it. The engine decides
+ * which threads the pumps run on, so that the cost of an idle session can be traded against latency.
+ */
+interface SessionIoEngine {
+
+    /**
+     * Start moving data for the given pump. The pump's {@link Pump#finished(IOException)} method is called
+     * exactly once when it reaches end of stream or fails.
+     */
+    void start(Pump pump);
+
+    void shutdown();
+
+    /**
+     * One direction of a session's I/O.
+     */
+    interface Pump {
+
+        String getName();
+
+        /**
+         * Move one block of data from the source to the sink, blocking until the source has data.
+         *
+         * @return false when the source has reached end of stream
+         */
+        boolean transfer() throws IOException;
+
+        /**
+         * @return the number of bytes that can be transferred without blocking, or -1 at end of stream
+         */
+        int available() throws IOException;
+
+        /**
+         * For a source that may report nothing available, rather than end of stream, once it has ended. An engine
+         * that polls idle pumps calls this now and then, and finishes the pump once it returns true.
+         *
+         * @return whether the source has ended and nothing is left to transfer
+         */
+        default boolean hasEnded() throws IOException {
+            return false;
+        }
+
+        void finished(IOException failure);
+    }
+
+    /**
+     * Run a pump on the calling thread until it completes.
+     */
+    static void run(Pump pump) {
+        try {
+            while (pump.transfer()) {
+                // keep pumping
+            }
+        } catch (IOException e) {
+            pump.finished(e);
+            return;
+        }
+        pump.finished(null);
+    }
+}
@@ -0,0 +1,116 @@
+package org.rowland.jinix.sshd;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * I/O counters for one session. Every update is also added to the server wide totals. The pumps update these on
+ * every block they move, so the counters are LongAdders rather than anything that needs a lock.
+ */
+class SessionMetrics implements SessionMetricsMXBean {
+
+    private final SshdMetrics server;
+    private final long id;
+    private final String description;
+    private final long startTime = System.currentTimeMillis();
+    private volatile long setupNanos;
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder inputWrites = new LongAdder();
+    private final LongAdder outputWrites = new LongAdder();
+    private final LongAdder outputFlushes = new LongAdder();
+    private final LongAdder discardedOutput = new LongAdder();
+
+    SessionMetrics(SshdMetrics server, long id, String description) {
+        this.server = server;
+        this.id = id;
+        this.description = description;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    void setupComplete(long nanos) {
+        setupNanos = nanos;
+        server.sessionSetup.record(nanos);
+    }
+
+    /**
+     * Record a block written from the client to the session's process.
+     */
+    void input(int bytes) {
+        bytesIn.add(bytes);
+        inputWrites.increment();
+        server.bytesIn.add(bytes);
+        server.inputWrites.increment();
+    }
+
+    /**
+     * Record a block written from the session's process to the client.
+     */
+    void output(int bytes) {
+        bytesOut.add(bytes);
+        outputWrites.increment();
+        server.bytesOut.add(bytes);
+        server.outputWrites.increment();
+    }
+
+    void flush() {
+        outputFlushes.increment();
+        server.outputFlushes.increment();
+    }
+
+    /**
+     * Record output read from the session's process and dropped, after an interrupt.
+     */
+    void discarded(int bytes) {
+        discardedOutput.add(bytes);
+        server.discardedOutput.add(bytes);
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public long getStartTime() {
+        return startTime;
+    }
+
+    @Override
+    public double getSetupMillis() {
+        return TimeUnit.NANOSECONDS.toMicros(setupNanos) / 1000.0;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getInputWrites() {
+        return inputWrites.sum();
+    }
+
+    @Override
+    public long getOutputWrites() {
+        return outputWrites.sum();
+    }
+
+    @Override
+    public long getOutputFlushes() {
+        return outputFlushes.sum();
+    }
+
+    @Override
+    public long getDiscardedOutput() {
+        return discardedOutput.sum();
+    }
+}
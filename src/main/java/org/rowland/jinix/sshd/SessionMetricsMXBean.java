@@ -0,0 +1,25 @@
+package org.rowland.jinix.sshd;
+
+/**
+ * JMX view of the I/O counters of one session.
+ */
+public interface SessionMetricsMXBean {
+
+    String getDescription();
+
+    long getStartTime();
+
+    double getSetupMillis();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getInputWrites();
+
+    long getOutputWrites();
+
+    long getOutputFlushes();
+
+    long getDiscardedOutput();
+}
@@ -0,0 +1,179 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.sshd.common.Closeable;
+import org.apache.sshd.common.FactoryManager;
+import org.apache.sshd.common.io.IoAcceptor;
+import org.apache.sshd.common.io.IoHandler;
+import org.apache.sshd.common.io.IoServiceEventListener;
+import org.apache.sshd.common.io.IoSession;
+import org.apache.sshd.common.io.nio2.Nio2Acceptor;
+import org.apache.sshd.common.util.closeable.AbstractInnerCloseable;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An acceptor made of several NIO2 acceptors, each on its own group of I/O threads, so that accepting
+ * connections, and the I/O of the sessions each one accepts, is spread over the shards rather than queued behind
+ * one accept loop.
+ *
+ * Where the platform supports SO_REUSEPORT, every shard listens on every address, and the kernel spreads incoming
+ * connections across the shards. Otherwise the listen addresses are dealt out among the shards, so there is only
+ * a gain when sshd listens on several addresses.
+ *
+ * The shards belong to one server, so they share its session registry, its session listeners, and with them the
+ * connection limits. The channel groups belong to the I/O service factory, which shuts them down.
+ */
+class ShardedAcceptor extends AbstractInnerCloseable implements IoAcceptor {
+
+    private final List<Shard> shards = new ArrayList<>();
+    private final boolean reusePort;
+    private int nextShard;
+    private IoServiceEventListener eventListener;
+
+    /**
+     * @param groups the channel group for each shard
+     */
+    ShardedAcceptor(FactoryManager manager, IoHandler handler, List<AsynchronousChannelGroup> groups) {
+        this.reusePort = isReusePortSupported();
+        for (AsynchronousChannelGroup group : groups) {
+            shards.add(new Shard(manager, handler, group, reusePort));
+        }
+        if (!reusePort) {
+            Sshd.log.info("SO_REUSEPORT is not supported, listen addresses are shared out among the acceptors");
+        }
+    }
+
+    static boolean isReusePortSupported() {
+        try (AsynchronousServerSocketChannel channel = AsynchronousServerSocketChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void bind(Collection<? extends SocketAddress> addresses) throws IOException {
+        for (SocketAddress address : addresses) {
+            bind(address);
+        }
+    }
+
+    /**
+     * With SO_REUSEPORT, the first shard binds the address, and the others then bind the address it was given, in
+     * case the port was left to the system.
+     */
+    @Override
+    public synchronized void bind(SocketAddress address) throws IOException {
+        if (!reusePort) {
+            shards.get(nextShard++ % shards.size()).bind(address);
+            return;
+        }
+        Shard first = shards.get(0);
+        Set<SocketAddress> before = new HashSet<>(first.getBoundAddresses());
+        first.bind(address);
+        SocketAddress bound = address;
+        for (SocketAddress boundAddress : first.getBoundAddresses()) {
+            if (!before.contains(boundAddress)) {
+                bound = boundAddress;
+            }
+        }
+        for (Shard shard : shards.subList(1, shards.size())) {
+            shard.bind(bound);
+        }
+    }
+
+    @Override
+    public void unbind(Collection<? extends SocketAddress> addresses) {
+        for (Shard shard : shards) {
+            shard.unbind(addresses);
+        }
+    }
+
+    @Override
+    public void unbind(SocketAddress address) {
+        for (Shard shard : shards) {
+            shard.unbind(address);
+        }
+    }
+
+    @Override
+    public void unbind() {
+        for (Shard shard : shards) {
+            shard.unbind();
+        }
+    }
+
+    @Override
+    public Set<SocketAddress> getBoundAddresses() {
+        Set<SocketAddress> addresses = new HashSet<>();
+        for (Shard shard : shards) {
+            addresses.addAll(shard.getBoundAddresses());
+        }
+        return addresses;
+    }
+
+    /**
+     * Session IDs are unique across all NIO2 services, so the shards' sessions can be merged into one map.
+     */
+    @Override
+    public Map<Long, IoSession> getManagedSessions() {
+        Map<Long, IoSession> sessions = new HashMap<>();
+        for (Shard shard : shards) {
+            sessions.putAll(shard.getManagedSessions());
+        }
+        return sessions;
+    }
+
+    @Override
+    public IoServiceEventListener getIoServiceEventListener() {
+        return eventListener;
+    }
+
+    @Override
+    public void setIoServiceEventListener(IoServiceEventListener listener) {
+        this.eventListener = listener;
+        for (Shard shard : shards) {
+            shard.setIoServiceEventListener(listener);
+        }
+    }
+
+    @Override
+    protected Closeable getInnerCloseable() {
+        return builder().parallel(toString(), shards).build();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + shards.size() + " shards" + (reusePort ? ", SO_REUSEPORT" : "") + "]";
+    }
+
+    private static class Shard extends Nio2Acceptor {
+        private final boolean reusePort;
+
+        Shard(FactoryManager manager, IoHandler handler, AsynchronousChannelGroup group, boolean reusePort) {
+            super(manager, handler, group);
+            this.reusePort = reusePort;
+        }
+
+        @Override
+        protected AsynchronousServerSocketChannel openAsynchronousServerSocketChannel(
+                SocketAddress address, AsynchronousChannelGroup group) throws IOException {
+            AsynchronousServerSocketChannel channel = super.openAsynchronousServerSocketChannel(address, group);
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            return channel;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.rowland.jinix.sshd;
+
+import org.rowland.jinix.proc.ProcessManager;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.rmi.RemoteException;
+import java.util.Properties;
+
+/**
+ * The operations a shell session performs through the sshd process's own JinixRuntime rather than through the
+ * TermServer and ProcessManager: opening the ends of a terminal, starting jsh on a terminal, and signalling a
+ * process group. They are kept behind this interface so that the load harness can run real sessions against
+ * local stand-ins for the Jinix servers.
+ */
+interface ShellHost {
+
+    /**
+     * One end of a terminal, as held by sshd.
+     */
+    interface TerminalEnd extends Closeable {
+
+        InputStream getInputStream();
+
+        OutputStream getOutputStream();
+
+        @Override
+        void close();
+    }
+
+    TerminalEnd openTerminalMaster(short terminalId) throws RemoteException;
+
+    TerminalEnd openTerminalSlave(short terminalId) throws RemoteException;
+
+    /**
+     * Start a jsh with the given terminal slave as its standard input, output and error. The caller still owns
+     * the slave, and closes it once the shell has started.
+     *
+     * @return the process ID of the shell
+     */
+    int execShell(Properties envProps, TerminalEnd slave);
+
+    void sendSignalProcessGroup(int processGroupId, ProcessManager.Signal signal);
+
+    /**
+     * @return whether a shell started by {@link #execShell} has exited. A shell that has exited is reaped.
+     */
+    boolean hasExited(int pid);
+}
@@ -0,0 +1,92 @@
+package org.rowland.jinix.sshd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.Consumer;
+
+/**
+ * Pump to read bytes from the ssh channels input stream, and write them to the
+ * jsh's input stream. Each read takes everything the channel currently has buffered, so a paste is
+ * forwarded to the terminal master in a few block writes rather than one write per byte.
+ */
+class ShellInputPump implements SessionIoEngine.Pump {
+
+    private final InputStream in;
+    private final OutputStream os;
+    private final byte[] buffer;
+    private final SessionMetrics metrics;
+    private final Runnable onInput;
+    private final int interruptCharacter;
+    private final Runnable onInterrupt;
+    private final int suspendCharacter;
+    private final Runnable onJobControl;
+    private final Consumer<IOException> onFinished;
+
+    /**
+     * @param in the ssh channel input stream
+     * @param shellIn the terminal master, to which the shell's input is written
+     * @param onInput called after each block of input is written to the shell
+     * @param interruptCharacter the terminal's interrupt character, or -1 to not look for it
+     * @param onInterrupt called before a block of input that holds the interrupt character is written
+     * @param suspendCharacter the terminal's suspend character, or -1 for none
+     * @param onJobControl called after a block of input that may start, stop or end a job is written: one that
+     *                     holds a line end or the suspend character
+     */
+    ShellInputPump(InputStream in, OutputStream shellIn, int bufferSize, SessionMetrics metrics,
+                   Runnable onInput, int interruptCharacter, Runnable onInterrupt,
+                   int suspendCharacter, Runnable onJobControl, Consumer<IOException> onFinished) {
+        this.in = in;
+        this.os = shellIn;
+        this.buffer = new byte[bufferSize];
+        this.metrics = metrics;
+        this.onInput = onInput;
+        this.interruptCharacter = interruptCharacter;
+        this.onInterrupt = onInterrupt;
+        this.suspendCharacter = suspendCharacter;
+        this.onJobControl = onJobControl;
+        this.onFinished = onFinished;
+    }
+
+    @Override
+    public String getName() {
+        return "Input Thread";
+    }
+
+    @Override
+    public int available() throws IOException {
+        return in.available();
+    }
+
+    @Override
+    public boolean transfer() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n < 0) {
+            return false;
+        }
+        if (n > 0) {
+            boolean interrupt = false;
+            boolean jobControl = false;
+            for (int i = 0; i < n; i++) {
+                int b = buffer[i] & 0xFF;
+                interrupt |= (b == interruptCharacter);
+                jobControl |= (b == '\r' || b == '\n' || b == suspendCharacter);
+            }
+            if (interrupt) {
+                onInterrupt.run();
+            }
+            os.write(buffer, 0, n);
+            metrics.input(n);
+            onInput.run();
+            if (jobControl) {
+                onJobControl.run();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void finished(IOException failure) {
+        onFinished.accept(failure);
+    }
+}
@@ -0,0 +1,236 @@
+package org.rowland.jinix.sshd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Pump to read bytes from the jsh's standards output and error, and write them to the
+ * ssh channel output stream. Output is moved in blocks: each read takes whatever the terminal master has
+ * ready, up to the size of the buffer.
+ *
+ * When to flush the channel depends on the kind of output. A small burst of output soon after input is
+ * keystroke echo or the reply to a command, and is flushed as soon as the terminal master is drained. Any other
+ * output, such as a build log or tail -f, is coalesced into full packets until the flush size or the flush
+ * latency limit is reached. When output stops short of either, a deferred flush sends what is held back once
+ * the latency limit has passed. While the client is already holding as much output as the governor allows, the
+ * deferred flush is put off again rather than wait on a flush thread.
+ */
+class ShellOutputPump implements SessionIoEngine.Pump {
+
+    // Output after input that goes beyond this is no longer treated as a reply to the input.
+    private static final int INTERACTIVE_BURST_SIZE = 4096;
+
+    private final InputStream is;
+    private final OutputStream out;
+    private final byte[] buffer;
+    private final int flushSize;
+    private final long flushLatency;
+    private final long interactiveWindow;
+    private final ScheduledExecutorService timer;
+    private final Executor flushExecutor;
+    private final SessionMetrics metrics;
+    private final OutputGovernor governor;
+    private final BooleanSupplier shellExited;
+    private final Consumer<IOException> onFinished;
+
+    private volatile long lastInput = System.nanoTime();
+    private long seenInput = lastInput;
+    private int outputSinceInput = 0;
+
+    // Output is counted from the start of the session. What comes before discardUntil is dropped.
+    private volatile long bytesRead = 0;
+    private volatile long discardUntil = 0;
+
+    // Guarded by this, as deferred flushes run on another thread.
+    private int pending = 0;
+    private long pendingSince = 0;
+    private boolean flushScheduled = false;
+    private volatile boolean finished = false;
+
+    /**
+     * @param shellOut the terminal master, from which the shell's output is read
+     * @param out the ssh channel output stream
+     * @param flushLatency the longest time output is held back before a flush, in milliseconds
+     * @param interactiveWindow how long after input output is flushed immediately, in milliseconds
+     * @param timer schedules deferred flushes
+     * @param flushExecutor runs deferred flushes, which may block on the channel's remote window, and so must not
+     *                      be an executor that session setup depends on
+     * @param governor the cap on the channel output held for the client, or null
+     * @param shellExited whether the shell has exited, asked when the terminal master has been idle a while
+     */
+    ShellOutputPump(InputStream shellOut, OutputStream out, int bufferSize, int flushSize, long flushLatency,
+                    long interactiveWindow, ScheduledExecutorService timer, Executor flushExecutor,
+                    SessionMetrics metrics, OutputGovernor governor, BooleanSupplier shellExited,
+                    Consumer<IOException> onFinished) {
+        this.is = shellOut;
+        this.out = out;
+        this.buffer = new byte[bufferSize];
+        this.flushSize = flushSize;
+        this.flushLatency = TimeUnit.MILLISECONDS.toNanos(flushLatency);
+        this.interactiveWindow = TimeUnit.MILLISECONDS.toNanos(interactiveWindow);
+        this.timer = timer;
+        this.flushExecutor = flushExecutor;
+        this.metrics = metrics;
+        this.governor = governor;
+        this.shellExited = shellExited;
+        this.onFinished = onFinished;
+    }
+
+    /**
+     * Called when input is sent to the shell, so that the output that answers it is flushed immediately.
+     */
+    void inputReceived() {
+        lastInput = System.nanoTime();
+    }
+
+    /**
+     * Drop the output the terminal master holds now, as a terminal driver flushes its output queue on an
+     * interrupt. Called by the input pump before it sends the interrupt, so that the output that answers the
+     * interrupt, such as the shell's prompt, is kept. Output the pump is reading at the same moment may still be
+     * sent.
+     */
+    void discardPending() throws IOException {
+        long read = bytesRead;
+        int held = is.available();
+        if (held > 0) {
+            discardUntil = Math.max(discardUntil, read + held);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "Output Thread";
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (governor != null && governor.isThrottled() && discardUntil <= bytesRead) {
+            // Nothing can be sent until the client takes some of what it is already owed.
+            return 0;
+        }
+        return is.available();
+    }
+
+    @Override
+    public boolean transfer() throws IOException {
+        int n = is.read(buffer, 0, buffer.length);
+        if (n < 0) {
+            flushPending();
+            return false;
+        }
+        if (n == 0) {
+            return true;
+        }
+        long readStart = bytesRead;
+        bytesRead = readStart + n;
+        int discard = (int) Math.max(0, Math.min(n, discardUntil - readStart));
+        if (discard > 0) {
+            metrics.discarded(discard);
+            if (discard == n) {
+                return true;
+            }
+        }
+        int length = n - discard;
+        try {
+            out.write(buffer, discard, length);
+        } catch (IOException e) {
+            Sshd.log.debug("Shell output lost, " + length + " bytes: " + e.getMessage());
+        }
+        metrics.output(length);
+
+        long now = System.nanoTime();
+        long inputTime = lastInput;
+        if (inputTime != seenInput) {
+            seenInput = inputTime;
+            outputSinceInput = 0;
+        }
+        outputSinceInput += length;
+        boolean interactive = now - inputTime < interactiveWindow && outputSinceInput <= INTERACTIVE_BURST_SIZE;
+
+        // A short read means the terminal master had nothing more to give us. Only a full buffer
+        // needs the (remote) available() call to find out whether more output is waiting.
+        boolean drained = interactive && (n < buffer.length || is.available() == 0);
+
+        boolean flush;
+        synchronized (this) {
+            if (pending == 0) {
+                pendingSince = now;
+            }
+            pending += length;
+            flush = drained || pending >= flushSize || now - pendingSince >= flushLatency;
+            if (flush) {
+                pending = 0;
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                scheduleFlush(pendingSince + flushLatency - now);
+            }
+        }
+        if (flush) {
+            out.flush();
+            metrics.flush();
+        }
+        return true;
+    }
+
+    /**
+     * The terminal master may report nothing available, rather than end of stream, after the shell has exited, so
+     * the shell itself is checked. Output held back is flushed before the pump finishes.
+     */
+    @Override
+    public boolean hasEnded() throws IOException {
+        if (is.available() > 0 || !shellExited.getAsBoolean()) {
+            return false;
+        }
+        flushPending();
+        return true;
+    }
+
+    private void scheduleFlush(long delay) {
+        timer.schedule(() -> flushExecutor.execute(this::deferredFlush), delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void deferredFlush() {
+        if (finished) {
+            return;
+        }
+        if (governor != null && governor.isThrottled()) {
+            // The flush would only wait for the client to take what it is already owed.
+            scheduleFlush(Math.max(flushLatency, TimeUnit.MILLISECONDS.toNanos(1)));
+            return;
+        }
+        synchronized (this) {
+            flushScheduled = false;
+        }
+        flushPending();
+    }
+
+    /**
+     * Flush output held back. A failure means the channel is closed, which the pump's next write finds out.
+     */
+    private void flushPending() {
+        synchronized (this) {
+            if (pending == 0) {
+                return;
+            }
+            pending = 0;
+        }
+        try {
+            out.flush();
+            metrics.flush();
+        } catch (IOException e) {
+            // Nothing more can be sent.
+        }
+    }
+
+    @Override
+    public void finished(IOException failure) {
+        finished = true;
+        onFinished.accept(failure);
+    }
+}
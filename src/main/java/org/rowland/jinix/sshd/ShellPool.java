@@ -0,0 +1,206 @@
+package org.rowland.jinix.sshd;
+
+import org.rowland.jinix.proc.ProcessManager;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of terminals, each with a jsh already started and waiting for input. Starting jsh dominates the time a
+ * client waits for a prompt, so a session that can claim a pooled shell only has to apply its terminal modes and
+ * size. The pool is refilled in the background as shells are claimed.
+ *
+ * A running shell's environment can not be changed, so pooled shells are started for one terminal type and user
+ * name. Sessions for any other terminal type or user start a shell of their own. For the same reason a pooled shell
+ * started before the base environment last changed is not handed out, and neither is one that has exited while
+ * parked; both are discarded and replaced. A shell that fails to start is retried with a back off.
+ */
+class ShellPool {
+
+    private static final String DEFAULT_LINES = "24";
+    private static final String DEFAULT_COLUMNS = "80";
+    private static final long MIN_RETRY_DELAY = 1000; // milliseconds
+    private static final long MAX_RETRY_DELAY = 60000; // milliseconds
+
+    private final int size;
+    private final String term;
+    private final String logname;
+    private final LinkedBlockingQueue<PooledShell> shells = new LinkedBlockingQueue<>();
+    private final ExecutorService refiller;
+    private int starting = 0;
+    private long retryDelay = MIN_RETRY_DELAY;
+    private boolean retryScheduled = false;
+    private volatile boolean shutdown = false;
+
+    static class PooledShell {
+        final short terminalId;
+        final int shellPid;
+        final ShellHost.TerminalEnd master;
+        private final long environmentGeneration;
+
+        private PooledShell(short terminalId, int shellPid, ShellHost.TerminalEnd master, long environmentGeneration) {
+            this.terminalId = terminalId;
+            this.shellPid = shellPid;
+            this.master = master;
+            this.environmentGeneration = environmentGeneration;
+        }
+    }
+
+    ShellPool(int size, String term, String logname) {
+        this.size = size;
+        this.term = term;
+        this.logname = logname;
+        this.refiller = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Shell Pool Refill");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void start() {
+        refill();
+    }
+
+    /**
+     * Claim a pooled shell for a session.
+     *
+     * @return a running shell, or null if the pool has none for this terminal type and user
+     */
+    PooledShell claim(String term, String logname) {
+        if (!this.term.equals(term) || !this.logname.equals(logname)) {
+            return null;
+        }
+        long generation;
+        try {
+            generation = Sshd.environmentCache.getGeneration();
+        } catch (IOException e) {
+            Sshd.log.warn("Failed to check the environment for pooled shells: " + e.getMessage());
+            return null;
+        }
+        PooledShell shell;
+        while ((shell = shells.poll()) != null) {
+            if (shell.environmentGeneration != generation) {
+                discard(shell, true);
+            } else if (hasExited(shell)) {
+                discard(shell, false);
+            } else {
+                break;
+            }
+        }
+        refill();
+        return shell;
+    }
+
+    void shutdown() {
+        shutdown = true;
+        refiller.shutdownNow();
+        PooledShell shell;
+        while ((shell = shells.poll()) != null) {
+            release(shell, true);
+        }
+    }
+
+    private static boolean hasExited(PooledShell shell) {
+        try {
+            return Sshd.metrics.time("ProcessManager.waitForChild", () -> Sshd.shellHost.hasExited(shell.shellPid));
+        } catch (RuntimeException e) {
+            Sshd.log.debug("Failed to check pooled shell " + shell.shellPid + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Release a pooled shell that is not to be handed out, on the refill thread so as not to hold up the claim.
+     */
+    private void discard(PooledShell shell, boolean running) {
+        Sshd.log.debug("Discarding pooled shell " + shell.shellPid + (running ? ", started in an older environment" :
+                ", exited"));
+        try {
+            refiller.execute(() -> release(shell, running));
+        } catch (RejectedExecutionException e) {
+            release(shell, running);
+        }
+    }
+
+    private static void release(PooledShell shell, boolean running) {
+        if (running) {
+            try {
+                Sshd.processManager.sendSignal(shell.shellPid, ProcessManager.Signal.HANGUP);
+            } catch (RemoteException e) {
+                Sshd.log.warn("Failed to hang up pooled shell: " + shell.shellPid);
+            }
+        }
+        shell.master.close();
+    }
+
+    private synchronized void refill() {
+        while (!shutdown && !retryScheduled && shells.size() + starting < size) {
+            starting++;
+            refiller.execute(this::startShell);
+        }
+    }
+
+    private void startShell() {
+        ShellHost.TerminalEnd master = null;
+        boolean started = false;
+        try {
+            short terminalId = Sshd.terminalServer.createTerminal();
+            master = Sshd.shellHost.openTerminalMaster(terminalId);
+
+            // Taken before the environment is created, so that a change in between makes the shell look old.
+            long generation = Sshd.environmentCache.getGeneration();
+            Properties envProps = Sshd.environmentCache.createEnvironment();
+            envProps.put("jinix.terminal.term", term);
+            envProps.put("jinix.terminal.lines", DEFAULT_LINES);
+            envProps.put("jinix.terminal.columns", DEFAULT_COLUMNS);
+            envProps.put("jinix.terminal.logname", logname);
+
+            int shellPid = JinixShell.startShell(terminalId, envProps);
+            shells.add(new PooledShell(terminalId, shellPid, master, generation));
+            master = null;
+            started = true;
+        } catch (Exception e) {
+            Sshd.log.error("Failed to start pooled shell", e);
+        } finally {
+            if (master != null) {
+                master.close();
+            }
+            synchronized (this) {
+                starting--;
+                if (started) {
+                    retryDelay = MIN_RETRY_DELAY;
+                } else {
+                    scheduleRetry();
+                }
+            }
+        }
+    }
+
+    /**
+     * Refill the pool after the retry delay, which doubles with each failure. Until then the pool is not refilled,
+     * so that a failing server is not asked to start a shell for every claim.
+     */
+    private synchronized void scheduleRetry() {
+        if (shutdown || retryScheduled) {
+            return;
+        }
+        retryScheduled = true;
+        try {
+            Sshd.scheduler.schedule(() -> {
+                synchronized (this) {
+                    retryScheduled = false;
+                }
+                refill();
+            }, retryDelay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            retryScheduled = false; // shutting down
+        }
+        retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+    }
+}
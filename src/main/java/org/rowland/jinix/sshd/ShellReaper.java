@@ -0,0 +1,65 @@
+package org.rowland.jinix.sshd;
+
+import org.rowland.jinix.proc.ProcessManager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tears down a shell whose session ended while the shell was still running, because the client went away, the
+ * session timed out, or the client closed the channel. The shell is hung up at once, and the channel input is
+ * closed to end the input pump. At the end of the grace period the terminal master is closed, which releases the
+ * terminal and ends the output pump, and the shell is killed if it is still running. A shell whose output pump
+ * failed, rather than read the end of the terminal, is checked with the process manager first, so that an exited
+ * shell's pid, which may have been reused, is never killed.
+ */
+class ShellReaper {
+
+    private final long gracePeriod;
+
+    /**
+     * @param gracePeriod how long a hung up shell has to exit before it is killed, in milliseconds
+     */
+    ShellReaper(long gracePeriod) {
+        this.gracePeriod = gracePeriod;
+    }
+
+    void reap(JinixShell shell) {
+        Sshd.log.debug("Reaping " + shell.describe());
+        Sshd.metrics.sessionReaped();
+        signal(shell, ProcessManager.Signal.HANGUP);
+        if (shell.isInputRunning()) {
+            Sshd.metrics.pumpReaped();
+        }
+        shell.closeInput();
+        Sshd.scheduler.schedule(() -> Sshd.sessionSetupExecutor.execute(() -> finish(shell)),
+                gracePeriod, TimeUnit.MILLISECONDS);
+    }
+
+    private void finish(JinixShell shell) {
+        boolean shellRunning = shell.isShellRunning();
+        boolean outputRunning = shell.isOutputRunning();
+        if (shell.releaseTerminal()) {
+            Sshd.metrics.terminalReaped();
+            if (outputRunning) {
+                Sshd.metrics.pumpReaped();
+            }
+        }
+        if (shellRunning) {
+            Sshd.log.info("Killing shell " + shell.getShellPid() + ", still running after hang up");
+            signal(shell, ProcessManager.Signal.KILL);
+            Sshd.metrics.shellKilled();
+        }
+    }
+
+    private static void signal(JinixShell shell, ProcessManager.Signal signal) {
+        if (shell.getShellPid() <= 0) {
+            return;
+        }
+        try {
+            Sshd.metrics.time("ProcessManager.sendSignal",
+                    () -> { Sshd.processManager.sendSignal(shell.getShellPid(), signal); return null; });
+        } catch (Exception e) {
+            Sshd.log.debug("Failed to send " + signal + " to shell " + shell.getShellPid() + ": " + e.getMessage());
+        }
+    }
+}
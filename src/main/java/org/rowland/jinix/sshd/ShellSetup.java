@@ -0,0 +1,235 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.sshd.common.channel.PtyMode;
+import org.rowland.jinix.proc.ProcessManager;
+import org.rowland.jinix.terminal.TerminalAttributes;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Creates the terminal and starts the shell for a new session. The setup is a set of remote calls to the
+ * TermServer, ExecServer and ProcessManager, many of which do not depend on each other, so each call is a stage
+ * that runs on the session setup executor as soon as the stages it depends on are complete:
+ *
+ * <pre>
+ *   createTerminal --+--> setTerminalAttributes --+
+ *                    +--> setTerminalSize --------+
+ *                    +--> getTerminalSlave -------+--> exec --+--> setProcessTerminalId
+ *                    +--> getTerminalMaster       |           +--> linkProcessToTerminal
+ *   environment ----------------------------------+
+ * </pre>
+ *
+ * The time taken by each stage is recorded, and added to the remote call metrics, or to the session setup metrics
+ * for the environment, which is built locally. If any stage fails, or the stages take longer than the session
+ * setup timeout, the shell process and terminal ends that were created are released before the failure is thrown.
+ * As a stage that is still running may yet create something, whatever the stages create is released again once
+ * they have all finished.
+ */
+class ShellSetup {
+
+    @FunctionalInterface
+    private interface Stage<T> {
+        T run() throws Exception;
+    }
+
+    private final Map<PtyMode, Integer> modes;
+    private final int columns;
+    private final int lines;
+    private final Properties shellEnv;
+
+    private final Map<String, Long> stageTimes = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private volatile short terminalId = -1;
+    private volatile int shellPid = -1;
+    private volatile ShellHost.TerminalEnd master;
+    private volatile ShellHost.TerminalEnd slave;
+    private volatile TerminalAttributes terminalAttributes;
+    private boolean shellHungUp = false; // guarded by this
+
+    ShellSetup(Map<PtyMode, Integer> modes, int columns, int lines, Properties shellEnv) {
+        this.modes = modes;
+        this.columns = columns;
+        this.lines = lines;
+        this.shellEnv = shellEnv;
+    }
+
+    void run() throws IOException {
+        long start = System.nanoTime();
+
+        CompletableFuture<Void> terminal = stage("TermServer.createTerminal", () -> {
+            terminalId = Sshd.terminalServer.createTerminal();
+            return null;
+        });
+        CompletableFuture<Properties> environment = stage("environment", Sshd.metrics.sessionEnvironment, () -> {
+            Properties envProps = Sshd.environmentCache.createEnvironment();
+            envProps.putAll(shellEnv);
+            return envProps;
+        });
+        CompletableFuture<Void> attributes = stage("TermServer.setTerminalAttributes", () -> {
+            terminalAttributes = Sshd.terminalAttributeTemplates.getAttributes(modes, terminalId);
+            Sshd.terminalServer.setTerminalAttributes(terminalId, terminalAttributes);
+            return null;
+        }, terminal);
+        CompletableFuture<Void> size = stage("TermServer.setTerminalSize", () -> {
+            Sshd.terminalServer.setTerminalSize(terminalId, columns, lines);
+            return null;
+        }, terminal);
+        CompletableFuture<Void> masterOpen = stage("TermServer.getTerminalMaster", () -> {
+            master = Sshd.shellHost.openTerminalMaster(terminalId);
+            return null;
+        }, terminal);
+        CompletableFuture<Void> slaveOpen = stage("TermServer.getTerminalSlave", () -> {
+            slave = Sshd.shellHost.openTerminalSlave(terminalId);
+            return null;
+        }, terminal);
+        CompletableFuture<Void> shell = stage("ExecServer.exec", () -> {
+            ShellHost.TerminalEnd slave = takeSlave();
+            if (slave == null) {
+                throw new IOException("Session setup abandoned");
+            }
+            try {
+                shellPid = Sshd.shellHost.execShell(environment.join(), slave);
+            } finally {
+                slave.close();
+            }
+            return null;
+        }, environment, attributes, size, slaveOpen);
+        CompletableFuture<Void> processTerminal = stage("ProcessManager.setProcessTerminalId", () -> {
+            Sshd.processManager.setProcessTerminalId(shellPid, terminalId);
+            return null;
+        }, shell);
+        CompletableFuture<Void> link = stage("TermServer.linkProcessToTerminal", () -> {
+            Sshd.terminalServer.linkProcessToTerminal(terminalId, shellPid);
+            return null;
+        }, shell);
+
+        CompletableFuture<Void> stages = CompletableFuture.allOf(masterOpen, processTerminal, link);
+        try {
+            if (Sshd.sessionSetupTimeout > 0) {
+                stages.get(Sshd.sessionSetupTimeout, TimeUnit.MILLISECONDS);
+            } else {
+                stages.get();
+            }
+        } catch (ExecutionException e) {
+            release();
+            Throwable cause = (e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause());
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Session setup failed", cause);
+        } catch (TimeoutException e) {
+            release();
+            stages.exceptionally(t -> null).thenRun(this::release);
+            throw new IOException("Session setup timed out after " + Sshd.sessionSetupTimeout + "ms, at " +
+                    getStageTimes(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Let the stages finish before releasing what they created.
+            stages.exceptionally(t -> null).thenRun(this::release);
+            throw new IOException("Session setup interrupted", e);
+        } finally {
+            stageTimes.put("total", System.nanoTime() - start);
+        }
+    }
+
+    short getTerminalId() {
+        return terminalId;
+    }
+
+    int getShellPid() {
+        return shellPid;
+    }
+
+    ShellHost.TerminalEnd getMaster() {
+        return master;
+    }
+
+    /**
+     * @return the attributes the terminal was given
+     */
+    TerminalAttributes getTerminalAttributes() {
+        return terminalAttributes;
+    }
+
+    /**
+     * @return the time taken by each stage in milliseconds, in the order in which the stages completed
+     */
+    String getStageTimes() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (stageTimes) {
+            for (Map.Entry<String, Long> stage : stageTimes.entrySet()) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(stage.getKey()).append('=')
+                        .append(TimeUnit.NANOSECONDS.toMicros(stage.getValue()) / 1000.0).append("ms");
+            }
+        }
+        return sb.toString();
+    }
+
+    private <T> CompletableFuture<T> stage(String name, Stage<T> stage, CompletableFuture<?>... dependencies) {
+        return stage(name, Sshd.metrics.remoteCall(name), stage, dependencies);
+    }
+
+    private <T> CompletableFuture<T> stage(String name, LatencyHistogram histogram, Stage<T> stage,
+                                           CompletableFuture<?>... dependencies) {
+        return CompletableFuture.allOf(dependencies).thenApplyAsync(v -> {
+            long start = System.nanoTime();
+            try {
+                return stage.run();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            } finally {
+                long time = System.nanoTime() - start;
+                stageTimes.put(name, time);
+                histogram.record(time);
+            }
+        }, Sshd.sessionSetupExecutor);
+    }
+
+    /**
+     * @return the terminal slave, which the caller is now to close, or null if it has been taken already
+     */
+    private synchronized ShellHost.TerminalEnd takeSlave() {
+        ShellHost.TerminalEnd slave = this.slave;
+        this.slave = null;
+        return slave;
+    }
+
+    /**
+     * Release whatever the stages have created so far. May be called again, to release what they create later.
+     */
+    private synchronized void release() {
+        if (shellPid > 0 && !shellHungUp) {
+            shellHungUp = true;
+            try {
+                Sshd.processManager.sendSignal(shellPid, ProcessManager.Signal.HANGUP);
+            } catch (RemoteException e) {
+                Sshd.log.warn("Failed to hang up shell: " + shellPid);
+            }
+        }
+        ShellHost.TerminalEnd slave = takeSlave();
+        if (slave != null) {
+            slave.close();
+        }
+        ShellHost.TerminalEnd master = this.master;
+        this.master = null;
+        if (master != null) {
+            master.close();
+        }
+    }
+}
@@ -1,15 +1,18 @@
 package org.rowland.jinix.sshd;
 
 import org.apache.commons.cli.*;
-import org.apache.sshd.common.FactoryManager;
 import org.apache.sshd.common.config.VersionProperties;
+import org.apache.sshd.common.io.IoServiceFactoryFactory;
+import org.apache.sshd.core.CoreModuleProperties;
 import org.apache.sshd.server.ServerBuilder;
 import org.apache.sshd.server.SshServer;
 import org.apache.sshd.server.auth.password.PasswordAuthenticator;
 import org.apache.sshd.server.auth.password.PasswordChangeRequiredException;
 import org.apache.sshd.server.channel.ChannelSessionFactory;
-import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
 import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.session.ServerUserAuthServiceFactory;
+import org.apache.sshd.scp.server.ScpCommandFactory;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
 import org.rowland.jinix.exec.ExecServer;
 import org.rowland.jinix.exec.InvalidExecutableException;
 import org.rowland.jinix.lang.JinixRuntime;
@@ -18,6 +21,7 @@ import org.rowland.jinix.naming.NameSpace;
 import org.rowland.jinix.proc.ProcessManager;
 import org.rowland.jinix.terminal.TermServer;
 
+import javax.management.JMException;
 import javax.naming.Context;
 import javax.naming.NamingException;
 import java.io.*;
@@ -30,11 +34,20 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.RMISocketFactory;
 import java.security.AccessController;
+import java.security.GeneralSecurityException;
 import java.security.PrivilegedAction;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
 
 /**
  * Jinix ssh server.
@@ -46,21 +59,249 @@ public class Sshd extends SshServer {
     private static final String LOG_FILE_PROPERTY_NAME = "LogFile";
     private static final String DEFAULT_LOG_FILE = "/var/log/sshd.log";
 
+    private static final String LOG_LEVEL_PROPERTY_NAME = "LogLevel";
+    private static final String DEFAULT_LOG_LEVEL = "info"; // error, warn, info or debug. -d selects debug.
+
+    private static final String LOG_MAX_SIZE_PROPERTY_NAME = "LogMaxSize";
+    private static final long DEFAULT_LOG_MAX_SIZE = 10 * 1024 * 1024; // bytes, 0 to never rotate
+
+    private static final String LOG_FILES_PROPERTY_NAME = "LogFiles";
+    private static final int DEFAULT_LOG_FILES = 4; // rotated files kept, 0 to start the log again
+
+    private static final String LOG_BUFFER_SIZE_PROPERTY_NAME = "LogBufferSize";
+    private static final int DEFAULT_LOG_BUFFER_SIZE = 8192; // records
+
+    private static final String LOG_WHEN_FULL_PROPERTY_NAME = "LogWhenFull";
+    private static final String DEFAULT_LOG_WHEN_FULL = "drop"; // drop or block
+
     private static final String PID_FILE_PROPERTY_NAME = "PidFile";
     private static final String DEFAULT_PID_FILE = "/var/run/sshd.pid";
 
     private static final String HOST_KEY_PROPERTY_NAME = "HostKey";
-    private static final String DEFAULT_HOST_KEY = "/config/ssh/ssh_host_dss_keys.ser";
+    private static final String DEFAULT_HOST_KEY = "/config/ssh/ssh_host_ed25519_key,/config/ssh/ssh_host_ecdsa_key";
+
+    // Algorithm lists use the OpenSSH names. CBC ciphers, and zlib on LAN links, cost more than they give.
+    private static final String CIPHERS_PROPERTY_NAME = "Ciphers";
+    private static final String DEFAULT_CIPHERS =
+            "aes128-gcm@openssh.com,aes256-gcm@openssh.com,aes128-ctr,aes192-ctr,aes256-ctr";
+
+    private static final String MACS_PROPERTY_NAME = "MACs";
+    private static final String DEFAULT_MACS = "hmac-sha2-256-etm@openssh.com,hmac-sha2-512-etm@openssh.com," +
+            "hmac-sha2-256,hmac-sha2-512,hmac-sha1-etm@openssh.com,hmac-sha1";
+
+    private static final String KEX_ALGORITHMS_PROPERTY_NAME = "KexAlgorithms";
+    private static final String DEFAULT_KEX_ALGORITHMS = "ecdh-sha2-nistp256,ecdh-sha2-nistp384,ecdh-sha2-nistp521," +
+            "diffie-hellman-group-exchange-sha256,diffie-hellman-group16-sha512,diffie-hellman-group18-sha512," +
+            "diffie-hellman-group14-sha256";
+
+    private static final String HOST_KEY_ALGORITHMS_PROPERTY_NAME = "HostKeyAlgorithms";
+    private static final String DEFAULT_HOST_KEY_ALGORITHMS = ""; // empty for every algorithm the host keys support
+
+    private static final String COMPRESSION_PROPERTY_NAME = "Compression";
+    private static final String DEFAULT_COMPRESSION = "no"; // no, delayed, yes or a list of names
+
+    private static final String PUBKEY_AUTHENTICATION_PROPERTY_NAME = "PubkeyAuthentication";
+    private static final boolean DEFAULT_PUBKEY_AUTHENTICATION = true;
+
+    private static final String AUTHORIZED_KEYS_FILE_PROPERTY_NAME = "AuthorizedKeysFile";
+    private static final String DEFAULT_AUTHORIZED_KEYS_FILE = "/home/%u/.ssh/authorized_keys";
+
+    private static final String AUTHORIZED_KEYS_CHECK_INTERVAL_PROPERTY_NAME = "AuthorizedKeysCheckInterval";
+    private static final long DEFAULT_AUTHORIZED_KEYS_CHECK_INTERVAL = 1000; // milliseconds
+
+    // There is no password database, so password authentication accepts any password. For development only.
+    private static final String PASSWORD_AUTHENTICATION_PROPERTY_NAME = "PasswordAuthentication";
+    private static final boolean DEFAULT_PASSWORD_AUTHENTICATION = false;
 
     private static final String PORT_PROPERTY_NAME  = "Port";
-    private static final String DEFAULT_PORT = "8000";
+    private static final int DEFAULT_PORT = 8000;
+
+    // A comma separated list of addresses to listen on, all on Port
+    private static final String LISTEN_ADDRESS_PROPERTY_NAME = "ListenAddress";
+    private static final String DEFAULT_LISTEN_ADDRESS = ""; // every local address
+
+    private static final String IO_BACKEND_PROPERTY_NAME = "IoBackend";
+    private static final String DEFAULT_IO_BACKEND = "nio2"; // nio2, mina or netty
+
+    private static final String IO_THREADS_PROPERTY_NAME = "IoThreads";
+    private static final int DEFAULT_IO_THREADS = Runtime.getRuntime().availableProcessors() + 1;
+
+    // More than one acceptor shards accepting connections, and the I/O threads, over that many NIO2 acceptors
+    private static final String ACCEPTORS_PROPERTY_NAME = "Acceptors";
+    private static final int DEFAULT_ACCEPTORS = 1;
+
+    private static final String IDLE_TIMEOUT_PROPERTY_NAME = "IdleTimeout";
+    private static final long DEFAULT_IDLE_TIMEOUT = 600; // seconds, 0 to disable
+
+    // Close a session whose client answers none of ClientAliveCountMax keepalives sent while it is silent
+    private static final String CLIENT_ALIVE_INTERVAL_PROPERTY_NAME = "ClientAliveInterval";
+    private static final long DEFAULT_CLIENT_ALIVE_INTERVAL = 15; // seconds, 0 to disable
+    private static final String CLIENT_ALIVE_COUNT_MAX_PROPERTY_NAME = "ClientAliveCountMax";
+    private static final int DEFAULT_CLIENT_ALIVE_COUNT_MAX = 3;
+
+    // How long the shell of a dead session has to exit after it is hung up, before it is killed
+    private static final String SHELL_REAP_GRACE_PERIOD_PROPERTY_NAME = "ShellReapGracePeriod";
+    private static final long DEFAULT_SHELL_REAP_GRACE_PERIOD = 5000; // milliseconds
+
+    private static final String WINDOW_SIZE_PROPERTY_NAME = "WindowSize";
+    private static final long DEFAULT_WINDOW_SIZE = 2 * 1024 * 1024;
+
+    private static final String MAX_PACKET_SIZE_PROPERTY_NAME = "MaxPacketSize";
+    private static final long DEFAULT_MAX_PACKET_SIZE = 32768;
+
+    private static final String TCP_NO_DELAY_PROPERTY_NAME = "TcpNoDelay";
+    private static final boolean DEFAULT_TCP_NO_DELAY = true;
+
+    private static final String TCP_KEEP_ALIVE_PROPERTY_NAME = "TcpKeepAlive";
+    private static final boolean DEFAULT_TCP_KEEP_ALIVE = false;
+
+    private static final String SOCKET_SEND_BUFFER_PROPERTY_NAME = "SocketSendBuffer";
+    private static final String SOCKET_RECEIVE_BUFFER_PROPERTY_NAME = "SocketReceiveBuffer";
+    private static final int DEFAULT_SOCKET_BUFFER = 0; // 0 for the system default
+
+    private static final String LISTEN_BACKLOG_PROPERTY_NAME = "ListenBacklog";
+    private static final int DEFAULT_LISTEN_BACKLOG = 0; // 0 for the system default
+
+    // ssh -L and -R, limited to the targets in PermitOpen and the listen addresses in PermitListen
+    private static final String ALLOW_TCP_FORWARDING_PROPERTY_NAME = "AllowTcpForwarding";
+    private static final String DEFAULT_ALLOW_TCP_FORWARDING = "no"; // no, local, remote or yes
+
+    private static final String PERMIT_OPEN_PROPERTY_NAME = "PermitOpen";
+    private static final String DEFAULT_PERMIT_OPEN = "none"; // host:port list, any or none
+
+    private static final String PERMIT_LISTEN_PROPERTY_NAME = "PermitListen";
+    private static final String DEFAULT_PERMIT_LISTEN = "none"; // [host:]port list, any or none
+
+    private static final String TUNNEL_BUFFER_SIZE_PROPERTY_NAME = "TunnelBufferSize";
+    private static final int DEFAULT_TUNNEL_BUFFER_SIZE = 65536;
+
+    private static final int MAX_POOLED_TUNNEL_BUFFERS = 64;
+
+    private static final String SFTP_PROPERTY_NAME = "Sftp";
+    private static final boolean DEFAULT_SFTP = true;
+
+    private static final String SFTP_BUFFER_SIZE_PROPERTY_NAME = "SftpBufferSize";
+    private static final int DEFAULT_SFTP_BUFFER_SIZE = 262144;
+
+    private static final String SCP_PROPERTY_NAME = "Scp";
+    private static final boolean DEFAULT_SCP = true;
+
+    private static final String SCP_BUFFER_SIZE_PROPERTY_NAME = "ScpBufferSize";
+    private static final int DEFAULT_SCP_BUFFER_SIZE = 262144;
+
+    private static final int MAX_POOLED_TRANSFER_BUFFERS = 16;
+
+    private static final String ENVIRONMENT_CHECK_INTERVAL_PROPERTY_NAME = "EnvironmentCheckInterval";
+    private static final long DEFAULT_ENVIRONMENT_CHECK_INTERVAL = 1000; // milliseconds
+
+    private static final String METRICS_LOG_INTERVAL_PROPERTY_NAME = "MetricsLogInterval";
+    private static final long DEFAULT_METRICS_LOG_INTERVAL = 0; // seconds, 0 to disable
+
+    private static final String RESIZE_DELAY_PROPERTY_NAME = "ResizeDelay";
+    private static final long DEFAULT_RESIZE_DELAY = 50; // milliseconds
+
+    private static final String SHELL_POOL_SIZE_PROPERTY_NAME = "ShellPoolSize";
+    private static final int DEFAULT_SHELL_POOL_SIZE = 0;
+
+    private static final String SHELL_POOL_TERM_PROPERTY_NAME = "ShellPoolTerm";
+    private static final String DEFAULT_SHELL_POOL_TERM = "xterm";
+
+    private static final String SHELL_POOL_USER_PROPERTY_NAME = "ShellPoolUser";
+
+    private static final String SESSION_IO_ENGINE_PROPERTY_NAME = "SessionIoEngine";
+    private static final String DEFAULT_SESSION_IO_ENGINE = "thread"; // thread, pooled or virtual
+
+    private static final String SESSION_IO_THREADS_PROPERTY_NAME = "SessionIoThreads";
+    private static final int DEFAULT_SESSION_IO_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+
+    private static final String MAX_CONNECTIONS_PROPERTY_NAME = "MaxConnections";
+    private static final int DEFAULT_MAX_CONNECTIONS = 1000;
+
+    private static final String MAX_CONNECTIONS_PER_ADDRESS_PROPERTY_NAME = "MaxConnectionsPerAddress";
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ADDRESS = 100;
+
+    private static final String MAX_HANDSHAKES_PROPERTY_NAME = "MaxHandshakes";
+    private static final int DEFAULT_MAX_HANDSHAKES = 100;
+
+    private static final String MAX_HANDSHAKES_PER_ADDRESS_PROPERTY_NAME = "MaxHandshakesPerAddress";
+    private static final int DEFAULT_MAX_HANDSHAKES_PER_ADDRESS = 30;
+
+    private static final String MAX_SESSION_SETUPS_PROPERTY_NAME = "MaxSessionSetups";
+    private static final int DEFAULT_MAX_SESSION_SETUPS = Runtime.getRuntime().availableProcessors() * 4;
+
+    private static final String MAX_QUEUED_SESSION_SETUPS_PROPERTY_NAME = "MaxQueuedSessionSetups";
+    private static final int DEFAULT_MAX_QUEUED_SESSION_SETUPS = 64;
+
+    private static final String SESSION_SETUP_QUEUE_TIMEOUT_PROPERTY_NAME = "SessionSetupQueueTimeout";
+    private static final long DEFAULT_SESSION_SETUP_QUEUE_TIMEOUT = 0; // milliseconds, 0 to reject at once
+
+    // How long a shell session's setup calls may take before the session is refused.
+    private static final String SESSION_SETUP_TIMEOUT_PROPERTY_NAME = "SessionSetupTimeout";
+    private static final long DEFAULT_SESSION_SETUP_TIMEOUT = 30000; // milliseconds, 0 to wait without limit
+
+    private static final String SESSION_SETUP_THREADS_PROPERTY_NAME = "SessionSetupThreads";
+    private static final int DEFAULT_SESSION_SETUP_THREADS = 0; // 0 for a thread per concurrent call
+
+    private static final String SESSION_IO_POLL_INTERVAL_PROPERTY_NAME = "SessionIoPollInterval";
+    private static final long DEFAULT_SESSION_IO_POLL_INTERVAL = 20; // milliseconds
+
+    private static final String SHELL_INPUT_BUFFER_SIZE_PROPERTY_NAME = "ShellInputBufferSize";
+    private static final int DEFAULT_SHELL_INPUT_BUFFER_SIZE = 32768;
+
+    private static final String SHELL_OUTPUT_BUFFER_SIZE_PROPERTY_NAME = "ShellOutputBufferSize";
+    private static final int DEFAULT_SHELL_OUTPUT_BUFFER_SIZE = 32768;
+
+    private static final String SHELL_OUTPUT_FLUSH_SIZE_PROPERTY_NAME = "ShellOutputFlushSize";
+    private static final int DEFAULT_SHELL_OUTPUT_FLUSH_SIZE = 32768;
+
+    private static final String SHELL_OUTPUT_FLUSH_LATENCY_PROPERTY_NAME = "ShellOutputFlushLatency";
+    private static final long DEFAULT_SHELL_OUTPUT_FLUSH_LATENCY = 20; // milliseconds
+
+    // Output this soon after input is flushed as soon as the shell stops writing, for crisp echo.
+    private static final String SHELL_OUTPUT_INTERACTIVE_WINDOW_PROPERTY_NAME = "ShellOutputInteractiveWindow";
+    private static final long DEFAULT_SHELL_OUTPUT_INTERACTIVE_WINDOW = 100; // milliseconds
+
+    // Channel output a shell session may hold for a slow client before the shell is made to wait.
+    private static final String SHELL_OUTPUT_MAX_PENDING_PROPERTY_NAME = "ShellOutputMaxPending";
+    private static final long DEFAULT_SHELL_OUTPUT_MAX_PENDING = 262144; // bytes, 0 to disable
+
+    // Drop the output waiting in the terminal when the interrupt character is typed. Output already handed to the
+    // channel, up to ShellOutputMaxPending plus the channel stream's buffer, still reaches the client first, so a
+    // lower ShellOutputMaxPending makes the interrupt show sooner.
+    private static final String SHELL_OUTPUT_CATCH_UP_PROPERTY_NAME = "ShellOutputCatchUp";
+    private static final boolean DEFAULT_SHELL_OUTPUT_CATCH_UP = false;
 
     static TermServer terminalServer;
     static ExecServer execServer;
     static ProcessManager processManager;
+    static ShellHost shellHost = new JinixShellHost();
+    static FileHost fileHost = new JinixFileHost();
     static SshServer server;
     static Thread mainThread;
 
+    static final SshdLog log = new SshdLog();
+    static final SshdMetrics metrics = new SshdMetrics();
+    static SessionIoEngine sessionIoEngine;
+    static ExecutorService sessionSetupExecutor;
+    static ExecutorService shellOutputFlushExecutor;
+    static ScheduledExecutorService scheduler;
+    static EnvironmentCache environmentCache;
+    static TerminalAttributeTemplates terminalAttributeTemplates = new TerminalAttributeTemplates();
+    static ShellPool shellPool;
+    static ShellReaper shellReaper;
+    static AdmissionControl admissionControl;
+    static AlgorithmPolicy algorithmPolicy;
+
+    static int shellInputBufferSize = DEFAULT_SHELL_INPUT_BUFFER_SIZE;
+    static int shellOutputBufferSize = DEFAULT_SHELL_OUTPUT_BUFFER_SIZE;
+    static int shellOutputFlushSize = DEFAULT_SHELL_OUTPUT_FLUSH_SIZE;
+    static long shellOutputFlushLatency = DEFAULT_SHELL_OUTPUT_FLUSH_LATENCY;
+    static long shellOutputInteractiveWindow = DEFAULT_SHELL_OUTPUT_INTERACTIVE_WINDOW;
+    static long shellOutputMaxPending = DEFAULT_SHELL_OUTPUT_MAX_PENDING;
+    static boolean shellOutputCatchUp = DEFAULT_SHELL_OUTPUT_CATCH_UP;
+    static long resizeDelay = DEFAULT_RESIZE_DELAY;
+    static long sessionSetupTimeout = DEFAULT_SESSION_SETUP_TIMEOUT;
+
     public static void main(String[] args) {
 
         CommandLine cmdLine = parseCommandLineOptions(args);
@@ -78,10 +319,6 @@ public class Sshd extends SshServer {
                 } catch (FileNotFoundException | InvalidExecutableException e) {
                     throw new RuntimeException(e);
                 }
-            } else {
-                if (cmdLine.hasOption("d")) {
-                    // turn on debug logging.
-                }
             }
         } else {
             // Disassociate ourselves from our parents session group and process group.
@@ -105,18 +342,20 @@ public class Sshd extends SshServer {
         }
 
         Properties sshdConfig = new Properties();
-        InputStream config = null;
+        InputStream configStream = null;
         try {
-            config = Files.newInputStream(Paths.get(configFile), StandardOpenOption.READ);
-            sshdConfig.load(new InputStreamReader(config));
-            config.close();
+            configStream = Files.newInputStream(Paths.get(configFile), StandardOpenOption.READ);
+            sshdConfig.load(new InputStreamReader(configStream));
+            configStream.close();
         } catch (NoSuchFileException e) {
             //Using default setting
         } catch (IOException e) {
             System.exit(0);
         }
 
-        String sshdPidFile = sshdConfig.getProperty(PID_FILE_PROPERTY_NAME, DEFAULT_PID_FILE);
+        SshdConfig config = new SshdConfig(sshdConfig);
+
+        String sshdPidFile = config.getString(PID_FILE_PROPERTY_NAME, DEFAULT_PID_FILE);
         try {
             OutputStream sshdPidFileStream = Files.newOutputStream(Paths.get(sshdPidFile),
                     StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
@@ -127,15 +366,7 @@ public class Sshd extends SshServer {
             throw new RuntimeException("IO Failure opening " + sshdPidFile, e);
         }
 
-        String sshdLog = sshdConfig.getProperty(LOG_FILE_PROPERTY_NAME, DEFAULT_LOG_FILE);
-        try {
-            OutputStream log = Files.newOutputStream(Paths.get(sshdLog),
-                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
-            System.setOut(new PrintStream(log));
-            System.setErr(new PrintStream(log));
-        } catch (IOException e) {
-            throw new RuntimeException("IO Failure opening " + sshdLog, e);
-        }
+        openLog(config, cmdLine.hasOption("d"));
 
         try {
             Context jinixNamingContext = JinixRuntime.getRuntime().getNamingContext();
@@ -148,52 +379,33 @@ public class Sshd extends SshServer {
             throw new RuntimeException("Failure locating Jinix servers.", e);
         }
 
-        int port;
-        try {
-            port = Integer.parseInt(sshdConfig.getProperty(PORT_PROPERTY_NAME, DEFAULT_PORT));
-        } catch (NumberFormatException e) {
-            port = Integer.parseInt(DEFAULT_PORT);
-        }
+        int port = config.getInt(PORT_PROPERTY_NAME, DEFAULT_PORT);
 
-        String hostKeyFile = sshdConfig.getProperty(HOST_KEY_PROPERTY_NAME, DEFAULT_HOST_KEY);
+        configure(config);
+        startShellPool(config);
 
-        if (hostKeyFile.equals(DEFAULT_HOST_KEY)) {
-            Path configFilePath = Path.of(configFile);
-            Path configFileDirectory = configFilePath.getParent();
-            if (!Files.exists(configFileDirectory)) {
-                try {
-                    System.out.println("Creating sshd config directory: " + configFileDirectory);
-                    Files.createDirectories(configFileDirectory);
-                } catch (IOException e) {
-                    System.err.println("Failed to create sshd config directory: " + configFileDirectory);
-                }
-            }
+        try {
+            server = createServer(config, port);
+        } catch (IOException | GeneralSecurityException e) {
+            log.error("Failed to load host keys or algorithm settings", e);
+            log.close();
+            return;
         }
 
-        server = ServerBuilder.builder().build();
-        server.setIoServiceFactoryFactory(new org.apache.sshd.common.io.nio2.Nio2ServiceFactoryFactory());
-        server.setPort(port);
-        server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(Paths.get(DEFAULT_HOST_KEY)));
-        server.setShellFactory(new JinixShellFactory());
-        //server.getProperties().put(FactoryManager.IDLE_TIMEOUT, TimeUnit.SECONDS.toMillis(10));
-
-        server.setPasswordAuthenticator(new PasswordAuthenticator() {
-            @Override
-            public boolean authenticate(String s, String s1, ServerSession serverSession) throws PasswordChangeRequiredException {
-                return true;
-            }
-        });
+        log.info("Configuration: " + config);
+        if (!config.getUnknownNames().isEmpty()) {
+            log.warn("Unknown settings ignored: " + config.getUnknownNames());
+        }
 
         JinixRuntime.getRuntime().registerSignalHandler(new ProcessSignalHandler() {
             @Override
             public boolean handleSignal(ProcessManager.Signal signal) {
                 if (signal == ProcessManager.Signal.TERMINATE) {
                     try {
-                        System.out.println("TERM signal received, shutting down...");
-                        server.stop();
+                        log.info("TERM signal received, shutting down...");
+                        stopServer();
                     } catch (IOException e) {
-                        System.err.println("IOException stopping server");
-                        e.printStackTrace(System.err);
+                        log.error("IOException stopping server", e);
                     }
                     mainThread.interrupt();
                     return true;
@@ -205,15 +417,317 @@ public class Sshd extends SshServer {
         try {
             server.start();
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("Failed to start server on port " + port, e);
+            log.close();
             return;
         }
 
         try {
             Thread.sleep(Integer.MAX_VALUE);
         } catch (InterruptedException e) {
-            System.out.println("Shutdown complete");
+            log.info("Shutdown complete");
+        }
+        log.close();
+    }
+
+    /**
+     * Start writing the log file, and send System.out, System.err and the java.util.logging messages of sshd-core
+     * to it.
+     */
+    private static void openLog(SshdConfig config, boolean debug) {
+        String sshdLog = config.getString(LOG_FILE_PROPERTY_NAME, DEFAULT_LOG_FILE);
+        try {
+            log.open(Paths.get(sshdLog),
+                    Math.max(0, config.getLong(LOG_MAX_SIZE_PROPERTY_NAME, DEFAULT_LOG_MAX_SIZE)),
+                    Math.max(0, config.getInt(LOG_FILES_PROPERTY_NAME, DEFAULT_LOG_FILES)),
+                    Math.max(16, config.getInt(LOG_BUFFER_SIZE_PROPERTY_NAME, DEFAULT_LOG_BUFFER_SIZE)),
+                    config.getString(LOG_WHEN_FULL_PROPERTY_NAME, DEFAULT_LOG_WHEN_FULL).equalsIgnoreCase("block"));
+        } catch (IOException e) {
+            throw new RuntimeException("IO Failure opening " + sshdLog, e);
+        }
+        String level = config.getString(LOG_LEVEL_PROPERTY_NAME, DEFAULT_LOG_LEVEL);
+        try {
+            log.setLevel(debug ? SshdLog.Level.DEBUG : SshdLog.Level.valueOf(level.toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown " + LOG_LEVEL_PROPERTY_NAME + ": " + level + ", using info");
+        }
+        System.setOut(log.printStream(SshdLog.Level.INFO));
+        System.setErr(log.printStream(SshdLog.Level.WARN));
+
+        java.util.logging.Logger rootLogger = java.util.logging.Logger.getLogger("");
+        for (Handler handler : rootLogger.getHandlers()) {
+            rootLogger.removeHandler(handler);
+        }
+        rootLogger.addHandler(log.julHandler());
+        rootLogger.setLevel(log.isDebugEnabled() ? java.util.logging.Level.FINE : java.util.logging.Level.INFO);
+    }
+
+    /**
+     * Apply the session settings from the configuration, and start the executors and caches shared by all
+     * sessions. The Jinix servers must already be set.
+     */
+    static void configure(SshdConfig config) {
+        shellInputBufferSize = Math.max(1024,
+                config.getInt(SHELL_INPUT_BUFFER_SIZE_PROPERTY_NAME, DEFAULT_SHELL_INPUT_BUFFER_SIZE));
+        shellOutputBufferSize = Math.max(1024,
+                config.getInt(SHELL_OUTPUT_BUFFER_SIZE_PROPERTY_NAME, DEFAULT_SHELL_OUTPUT_BUFFER_SIZE));
+        shellOutputFlushSize = Math.max(1,
+                config.getInt(SHELL_OUTPUT_FLUSH_SIZE_PROPERTY_NAME, DEFAULT_SHELL_OUTPUT_FLUSH_SIZE));
+        shellOutputFlushLatency = Math.max(0,
+                config.getLong(SHELL_OUTPUT_FLUSH_LATENCY_PROPERTY_NAME, DEFAULT_SHELL_OUTPUT_FLUSH_LATENCY));
+        shellOutputInteractiveWindow = Math.max(0, config.getLong(SHELL_OUTPUT_INTERACTIVE_WINDOW_PROPERTY_NAME,
+                DEFAULT_SHELL_OUTPUT_INTERACTIVE_WINDOW));
+        shellOutputMaxPending = Math.max(0,
+                config.getLong(SHELL_OUTPUT_MAX_PENDING_PROPERTY_NAME, DEFAULT_SHELL_OUTPUT_MAX_PENDING));
+        shellOutputCatchUp = config.getBoolean(SHELL_OUTPUT_CATCH_UP_PROPERTY_NAME, DEFAULT_SHELL_OUTPUT_CATCH_UP);
+
+        sessionIoEngine = createSessionIoEngine(config);
+
+        sessionSetupTimeout = Math.max(0,
+                config.getLong(SESSION_SETUP_TIMEOUT_PROPERTY_NAME, DEFAULT_SESSION_SETUP_TIMEOUT));
+
+        AtomicInteger setupThreadCount = new AtomicInteger();
+        ThreadFactory setupThreadFactory = r -> {
+            Thread t = new Thread(r, "Session Setup " + setupThreadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        int sessionSetupThreads = config.getThreadCount(SESSION_SETUP_THREADS_PROPERTY_NAME, DEFAULT_SESSION_SETUP_THREADS);
+        sessionSetupExecutor = (sessionSetupThreads > 0 ?
+                Executors.newFixedThreadPool(sessionSetupThreads, setupThreadFactory) :
+                Executors.newCachedThreadPool(setupThreadFactory));
+        // Deferred output flushes can wait on a client, so they are kept apart from session setup.
+        AtomicInteger flushThreadCount = new AtomicInteger();
+        shellOutputFlushExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "Shell Output Flush " + flushThreadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Sshd Timer");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            metrics.register();
+        } catch (JMException e) {
+            log.warn("Failed to register sshd MBeans: " + e.getMessage());
+        }
+        long metricsLogInterval = config.getLong(METRICS_LOG_INTERVAL_PROPERTY_NAME, DEFAULT_METRICS_LOG_INTERVAL);
+        if (metricsLogInterval > 0) {
+            scheduler.scheduleAtFixedRate(() -> log.info("Metrics: " + metrics.snapshot()),
+                    metricsLogInterval, metricsLogInterval, TimeUnit.SECONDS);
+        }
+
+        resizeDelay = Math.max(0, config.getLong(RESIZE_DELAY_PROPERTY_NAME, DEFAULT_RESIZE_DELAY));
+        shellReaper = new ShellReaper(
+                Math.max(0, config.getLong(SHELL_REAP_GRACE_PERIOD_PROPERTY_NAME, DEFAULT_SHELL_REAP_GRACE_PERIOD)));
+
+        admissionControl = new AdmissionControl(
+                config.getInt(MAX_CONNECTIONS_PROPERTY_NAME, DEFAULT_MAX_CONNECTIONS),
+                config.getInt(MAX_CONNECTIONS_PER_ADDRESS_PROPERTY_NAME, DEFAULT_MAX_CONNECTIONS_PER_ADDRESS),
+                config.getInt(MAX_HANDSHAKES_PROPERTY_NAME, DEFAULT_MAX_HANDSHAKES),
+                config.getInt(MAX_HANDSHAKES_PER_ADDRESS_PROPERTY_NAME, DEFAULT_MAX_HANDSHAKES_PER_ADDRESS),
+                config.getInt(MAX_SESSION_SETUPS_PROPERTY_NAME, DEFAULT_MAX_SESSION_SETUPS),
+                Math.max(0, config.getInt(MAX_QUEUED_SESSION_SETUPS_PROPERTY_NAME, DEFAULT_MAX_QUEUED_SESSION_SETUPS)),
+                Math.max(0, config.getLong(SESSION_SETUP_QUEUE_TIMEOUT_PROPERTY_NAME, DEFAULT_SESSION_SETUP_QUEUE_TIMEOUT)));
+
+        environmentCache = new EnvironmentCache(
+                config.getLong(ENVIRONMENT_CHECK_INTERVAL_PROPERTY_NAME, DEFAULT_ENVIRONMENT_CHECK_INTERVAL));
+    }
+
+    /**
+     * Start the pool of pre-started shells, if the configuration asks for one.
+     */
+    static void startShellPool(SshdConfig config) {
+        int shellPoolSize = config.getInt(SHELL_POOL_SIZE_PROPERTY_NAME, DEFAULT_SHELL_POOL_SIZE);
+        if (shellPoolSize > 0) {
+            String shellPoolUser = config.getString(SHELL_POOL_USER_PROPERTY_NAME, "");
+            if (shellPoolUser.isEmpty()) {
+                log.warn(SHELL_POOL_SIZE_PROPERTY_NAME + " requires " + SHELL_POOL_USER_PROPERTY_NAME +
+                        ", shell pool disabled");
+            } else {
+                shellPool = new ShellPool(shellPoolSize,
+                        config.getString(SHELL_POOL_TERM_PROPERTY_NAME, DEFAULT_SHELL_POOL_TERM), shellPoolUser);
+                shellPool.start();
+            }
+        }
+    }
+
+    /**
+     * Create the ssh server for the configuration, loading or generating its host keys. The server is not started.
+     */
+    static SshServer createServer(SshdConfig config, int port) throws IOException, GeneralSecurityException {
+        HostKeys hostKeys = new HostKeys(config.getString(HOST_KEY_PROPERTY_NAME, DEFAULT_HOST_KEY));
+        algorithmPolicy = new AlgorithmPolicy(
+                config.getString(CIPHERS_PROPERTY_NAME, DEFAULT_CIPHERS),
+                config.getString(MACS_PROPERTY_NAME, DEFAULT_MACS),
+                config.getString(KEX_ALGORITHMS_PROPERTY_NAME, DEFAULT_KEX_ALGORITHMS),
+                config.getString(HOST_KEY_ALGORITHMS_PROPERTY_NAME, DEFAULT_HOST_KEY_ALGORITHMS),
+                config.getString(COMPRESSION_PROPERTY_NAME, DEFAULT_COMPRESSION));
+
+        SshServer server = ServerBuilder.builder().build();
+        server.setIoServiceFactoryFactory(createIoServiceFactoryFactory(config));
+        server.setPort(port);
+        String listenAddress = config.getString(LISTEN_ADDRESS_PROPERTY_NAME, DEFAULT_LISTEN_ADDRESS).replace(" ", "");
+        if (!listenAddress.isEmpty()) {
+            server.setHost(listenAddress);
+        }
+        long clientAliveInterval = config.getLong(CLIENT_ALIVE_INTERVAL_PROPERTY_NAME, DEFAULT_CLIENT_ALIVE_INTERVAL);
+        if (clientAliveInterval > 0) {
+            server.setSessionFactory(new KeepaliveSession.Factory(server, clientAliveInterval,
+                    Math.max(1, config.getInt(CLIENT_ALIVE_COUNT_MAX_PROPERTY_NAME, DEFAULT_CLIENT_ALIVE_COUNT_MAX))));
+        }
+
+        CoreModuleProperties.NIO_WORKERS.set(server,
+                Math.max(1, config.getThreadCount(IO_THREADS_PROPERTY_NAME, DEFAULT_IO_THREADS)));
+        CoreModuleProperties.IDLE_TIMEOUT.set(server,
+                Duration.ofSeconds(Math.max(0, config.getLong(IDLE_TIMEOUT_PROPERTY_NAME, DEFAULT_IDLE_TIMEOUT))));
+        CoreModuleProperties.WINDOW_SIZE.set(server,
+                Math.max(32768, config.getLong(WINDOW_SIZE_PROPERTY_NAME, DEFAULT_WINDOW_SIZE)));
+        CoreModuleProperties.MAX_PACKET_SIZE.set(server,
+                Math.max(1024, config.getLong(MAX_PACKET_SIZE_PROPERTY_NAME, DEFAULT_MAX_PACKET_SIZE)));
+        CoreModuleProperties.TCP_NODELAY.set(server, config.getBoolean(TCP_NO_DELAY_PROPERTY_NAME, DEFAULT_TCP_NO_DELAY));
+        CoreModuleProperties.SOCKET_KEEPALIVE.set(server,
+                config.getBoolean(TCP_KEEP_ALIVE_PROPERTY_NAME, DEFAULT_TCP_KEEP_ALIVE));
+        int socketSendBuffer = config.getInt(SOCKET_SEND_BUFFER_PROPERTY_NAME, DEFAULT_SOCKET_BUFFER);
+        if (socketSendBuffer > 0) {
+            CoreModuleProperties.SOCKET_SNDBUF.set(server, socketSendBuffer);
+        }
+        int socketReceiveBuffer = config.getInt(SOCKET_RECEIVE_BUFFER_PROPERTY_NAME, DEFAULT_SOCKET_BUFFER);
+        if (socketReceiveBuffer > 0) {
+            CoreModuleProperties.SOCKET_RCVBUF.set(server, socketReceiveBuffer);
+        }
+        int listenBacklog = config.getInt(LISTEN_BACKLOG_PROPERTY_NAME, DEFAULT_LISTEN_BACKLOG);
+        if (listenBacklog > 0) {
+            CoreModuleProperties.SOCKET_BACKLOG.set(server, listenBacklog);
+        }
+
+        server.setKeyPairProvider(hostKeys.getKeyPairProvider());
+        server.setSignatureFactories(hostKeys.getSignatureFactories());
+        algorithmPolicy.apply(server);
+        server.addSessionListener(admissionControl);
+        server.setShellFactory(new JinixShellFactory());
+        if (config.getBoolean(SCP_PROPERTY_NAME, DEFAULT_SCP)) {
+            int scpBufferSize = Math.max(32768, config.getInt(SCP_BUFFER_SIZE_PROPERTY_NAME, DEFAULT_SCP_BUFFER_SIZE));
+            server.setCommandFactory(new ScpCommandFactory.Builder()
+                    .withDelegate(new JinixCommandFactory())
+                    .withFileOpener(new JinixScpFileOpener(new BufferPool(scpBufferSize, MAX_POOLED_TRANSFER_BUFFERS)))
+                    .withSendBufferSize(scpBufferSize)
+                    .withReceiveBufferSize(scpBufferSize)
+                    .build());
+        } else {
+            server.setCommandFactory(new JinixCommandFactory());
+        }
+        ForwardingPolicy forwardingPolicy = new ForwardingPolicy(
+                config.getString(ALLOW_TCP_FORWARDING_PROPERTY_NAME, DEFAULT_ALLOW_TCP_FORWARDING),
+                config.getString(PERMIT_OPEN_PROPERTY_NAME, DEFAULT_PERMIT_OPEN),
+                config.getString(PERMIT_LISTEN_PROPERTY_NAME, DEFAULT_PERMIT_LISTEN));
+        if (forwardingPolicy.isEnabled()) {
+            server.setForwardingFilter(forwardingPolicy);
+            server.setServiceFactories(Arrays.asList(
+                    ServerUserAuthServiceFactory.INSTANCE, new TunnelConnectionService.Factory()));
+        }
+        if (config.getBoolean(SFTP_PROPERTY_NAME, DEFAULT_SFTP)) {
+            BufferPool sftpBuffers = new BufferPool(
+                    Math.max(32768, config.getInt(SFTP_BUFFER_SIZE_PROPERTY_NAME, DEFAULT_SFTP_BUFFER_SIZE)),
+                    MAX_POOLED_TRANSFER_BUFFERS);
+            server.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory.Builder()
+                    .withFileSystemAccessor(new JinixSftpFileSystemAccessor(sftpBuffers))
+                    .build()));
+        }
+
+        if (config.getBoolean(PUBKEY_AUTHENTICATION_PROPERTY_NAME, DEFAULT_PUBKEY_AUTHENTICATION)) {
+            server.setPublickeyAuthenticator(new AuthorizedKeys(
+                    config.getString(AUTHORIZED_KEYS_FILE_PROPERTY_NAME, DEFAULT_AUTHORIZED_KEYS_FILE),
+                    config.getLong(AUTHORIZED_KEYS_CHECK_INTERVAL_PROPERTY_NAME, DEFAULT_AUTHORIZED_KEYS_CHECK_INTERVAL)));
+        }
+        if (config.getBoolean(PASSWORD_AUTHENTICATION_PROPERTY_NAME, DEFAULT_PASSWORD_AUTHENTICATION)) {
+            server.setPasswordAuthenticator(new PasswordAuthenticator() {
+                @Override
+                public boolean authenticate(String s, String s1, ServerSession serverSession) throws PasswordChangeRequiredException {
+                    return true;
+                }
+            });
+        } else {
+            server.setKeyboardInteractiveAuthenticator(null);
+        }
+        return server;
+    }
+
+    static void stopServer() throws IOException {
+        server.stop();
+        sessionIoEngine.shutdown();
+        sessionSetupExecutor.shutdownNow();
+        shellOutputFlushExecutor.shutdownNow();
+        scheduler.shutdownNow();
+        if (shellPool != null) {
+            shellPool.shutdown();
+        }
+    }
+
+    /**
+     * NIO2 is built into sshd-core. MINA and Netty are only present when built with the mina or netty profile.
+     * The NIO2 backend reads forwarded connections into pooled direct buffers, and is the only one that can shard
+     * its acceptor.
+     */
+    private static IoServiceFactoryFactory createIoServiceFactoryFactory(SshdConfig config) {
+        String backend = config.getString(IO_BACKEND_PROPERTY_NAME, DEFAULT_IO_BACKEND);
+        int acceptors = Math.max(1, config.getThreadCount(ACCEPTORS_PROPERTY_NAME, DEFAULT_ACCEPTORS));
+        String factoryClass = null;
+        if (backend.equalsIgnoreCase("mina")) {
+            factoryClass = "org.apache.sshd.mina.MinaServiceFactoryFactory";
+        } else if (backend.equalsIgnoreCase("netty")) {
+            factoryClass = "org.apache.sshd.netty.NettyIoServiceFactoryFactory";
+        } else if (!backend.equalsIgnoreCase(DEFAULT_IO_BACKEND)) {
+            log.warn("Unknown " + IO_BACKEND_PROPERTY_NAME + ": " + backend + ", using nio2");
+        }
+        if (factoryClass == null && acceptors > 1 && !ShardedAcceptor.isReusePortSupported()) {
+            // Each listen address is then accepted by one shard, so shards beyond the addresses would only take
+            // I/O threads away from the others.
+            String listenAddress = config.getString(LISTEN_ADDRESS_PROPERTY_NAME, DEFAULT_LISTEN_ADDRESS).trim();
+            int addresses = (listenAddress.isEmpty() ? 1 : listenAddress.split(",").length);
+            if (addresses < acceptors) {
+                log.warn("SO_REUSEPORT is not supported and there " + (addresses == 1 ? "is 1 listen address" :
+                        "are " + addresses + " listen addresses") + ", using " + addresses + " acceptors");
+                acceptors = addresses;
+            }
+        }
+        if (factoryClass != null) {
+            if (acceptors > 1) {
+                log.warn(ACCEPTORS_PROPERTY_NAME + " is only supported by the nio2 I/O backend, using one acceptor");
+            }
+            try {
+                return (IoServiceFactoryFactory) Class.forName(factoryClass).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                log.warn(backend + " I/O backend not available, using nio2");
+            }
+        }
+        return new DirectBufferNio2ServiceFactory.FactoryFactory(
+                Math.max(4096, config.getInt(TUNNEL_BUFFER_SIZE_PROPERTY_NAME, DEFAULT_TUNNEL_BUFFER_SIZE)),
+                MAX_POOLED_TUNNEL_BUFFERS, acceptors);
+    }
+
+    private static SessionIoEngine createSessionIoEngine(SshdConfig config) {
+        String engine = config.getString(SESSION_IO_ENGINE_PROPERTY_NAME, DEFAULT_SESSION_IO_ENGINE);
+        if (engine.equalsIgnoreCase("pooled")) {
+            return new PooledSessionIoEngine(
+                    Math.max(1, config.getThreadCount(SESSION_IO_THREADS_PROPERTY_NAME, DEFAULT_SESSION_IO_THREADS)),
+                    config.getLong(SESSION_IO_POLL_INTERVAL_PROPERTY_NAME, DEFAULT_SESSION_IO_POLL_INTERVAL));
+        }
+        if (engine.equalsIgnoreCase("virtual")) {
+            // Only present when built with the virtual-threads profile.
+            try {
+                return (SessionIoEngine) Class.forName("org.rowland.jinix.sshd.VirtualThreadSessionIoEngine")
+                        .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                log.warn("Virtual thread session I/O engine not available, using platform threads");
+            }
+        } else if (!engine.equalsIgnoreCase(DEFAULT_SESSION_IO_ENGINE)) {
+            log.warn("Unknown " + SESSION_IO_ENGINE_PROPERTY_NAME + ": " + engine + ", using platform threads");
         }
+        return new ThreadSessionIoEngine();
     }
 
     private static CommandLine parseCommandLineOptions(String[] args) {
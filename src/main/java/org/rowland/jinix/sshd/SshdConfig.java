@@ -0,0 +1,102 @@
+package org.rowland.jinix.sshd;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Typed access to the settings in sshd.config. Malformed numeric values fall back to the default, in the same
+ * way the Port setting always has. Every value read is remembered, defaults included, so that the settings in
+ * effect can be logged at startup.
+ */
+class SshdConfig {
+
+    private final Properties properties;
+    private final Map<String, String> effective = new TreeMap<>();
+
+    SshdConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * @return the value, trimmed, or the default if the setting is absent, which may be null
+     */
+    String getString(String name, String defaultValue) {
+        String value = properties.getProperty(name, defaultValue);
+        return record(name, value != null ? value.trim() : null);
+    }
+
+    int getInt(String name, int defaultValue) {
+        try {
+            return Integer.parseInt(getString(name, Integer.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            record(name, Integer.toString(defaultValue));
+            return defaultValue;
+        }
+    }
+
+    long getLong(String name, long defaultValue) {
+        try {
+            return Long.parseLong(getString(name, Long.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            record(name, Long.toString(defaultValue));
+            return defaultValue;
+        }
+    }
+
+    boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, defaultValue ? "yes" : "no");
+        return value.equalsIgnoreCase("yes") || value.equalsIgnoreCase("true");
+    }
+
+    /**
+     * A thread count is either a number of threads, or a multiple of the number of cores such as "2x" or "0.5x".
+     * A multiple is never less than one thread.
+     */
+    int getThreadCount(String name, int defaultValue) {
+        String value = properties.getProperty(name, Integer.toString(defaultValue)).trim();
+        int threads = defaultValue;
+        try {
+            if (value.endsWith("x") || value.endsWith("X")) {
+                double multiple = Double.parseDouble(value.substring(0, value.length() - 1));
+                threads = Math.max(1, (int) (multiple * Runtime.getRuntime().availableProcessors()));
+            } else {
+                threads = Integer.parseInt(value);
+            }
+        } catch (NumberFormatException e) {
+            // Use the default.
+        }
+        record(name, Integer.toString(threads));
+        return threads;
+    }
+
+    /**
+     * @return the names in the configuration file that have not been read, which are most likely misspelt
+     */
+    Set<String> getUnknownNames() {
+        Set<String> unknown = new TreeSet<>(properties.stringPropertyNames());
+        synchronized (effective) {
+            unknown.removeAll(effective.keySet());
+        }
+        return unknown;
+    }
+
+    /**
+     * @return the settings read so far, with the values in effect
+     */
+    @Override
+    public String toString() {
+        synchronized (effective) {
+            return effective.toString();
+        }
+    }
+
+    private String record(String name, String value) {
+        synchronized (effective) {
+            effective.put(name, value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,356 @@
+package org.rowland.jinix.sshd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * The sshd log. Logging a message only queues it: a single writer thread formats the queued records and writes
+ * them to the log file in batches, so a session or I/O thread never waits for the file system. When the queue is
+ * full a record is dropped and counted, or, if the log blocks when full, the caller waits for room.
+ *
+ * The log file is rotated once it reaches its maximum size: sshd.log becomes sshd.log.1, sshd.log.1 becomes
+ * sshd.log.2, and so on, up to the number of files kept. If no rotated files are kept the log file is started
+ * again.
+ *
+ * Until the log is opened, for example while the configuration is read, or when sshd runs inside another
+ * program, records are written straight to System.err. The writer itself never logs, so that it cannot wait
+ * on its own queue.
+ */
+class SshdLog {
+
+    enum Level {
+        ERROR, WARN, INFO, DEBUG
+    }
+
+    private static final int MAX_BATCH = 256;
+    private static final Record END = new Record(Level.INFO, "End of log", null); // queued by close
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private volatile Level level = Level.INFO;
+    private volatile BlockingQueue<Record> queue;
+    private volatile boolean blockWhenFull;
+    private volatile PrintStream console = System.err;
+    private final LongAdder dropped = new LongAdder();
+
+    private Path file;
+    private long maxSize;
+    private int files;
+    private OutputStream out;
+    private long size;
+    private Thread writer;
+
+    void setLevel(Level level) {
+        this.level = level;
+    }
+
+    Level getLevel() {
+        return level;
+    }
+
+    boolean isDebugEnabled() {
+        return level == Level.DEBUG;
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    void error(String message, Throwable failure) {
+        log(Level.ERROR, message, failure);
+    }
+
+    void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    void warn(String message, Throwable failure) {
+        log(Level.WARN, message, failure);
+    }
+
+    void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    void log(Level level, String message, Throwable failure) {
+        if (level.compareTo(this.level) > 0) {
+            return;
+        }
+        Record record = new Record(level, message, failure);
+        BlockingQueue<Record> queue = this.queue;
+        if (queue == null) {
+            PrintStream err = System.err;
+            (err instanceof LogPrintStream ? console : err).print(record.format());
+            return;
+        }
+        if (queue.offer(record)) {
+            return;
+        }
+        if (blockWhenFull) {
+            try {
+                queue.put(record);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        dropped.increment();
+    }
+
+    /**
+     * Start writing the log to a file.
+     *
+     * @param maxSize the size at which the file is rotated, or 0 to never rotate it
+     * @param files the number of rotated files to keep
+     * @param capacity the number of records that may be queued for the writer
+     * @param blockWhenFull whether a caller waits for room when the queue is full, rather than drop its record
+     */
+    synchronized void open(Path file, long maxSize, int files, int capacity, boolean blockWhenFull)
+            throws IOException {
+        this.file = file;
+        this.maxSize = maxSize;
+        this.files = files;
+        openFile();
+        if (!(System.err instanceof LogPrintStream)) {
+            console = System.err;
+        }
+        this.blockWhenFull = blockWhenFull;
+        BlockingQueue<Record> queue = new ArrayBlockingQueue<>(capacity);
+        this.queue = queue;
+        writer = new Thread(() -> writeRecords(queue), "Sshd Log Writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Write every queued record and stop the writer. The writer is stopped by queueing an end marker behind the
+     * records, not by an interrupt, which would close the file under a write. Records logged from now on go to
+     * System.err.
+     */
+    void close() {
+        Thread writer;
+        BlockingQueue<Record> queue;
+        synchronized (this) {
+            writer = this.writer;
+            queue = this.queue;
+            this.writer = null;
+            this.queue = null;
+        }
+        if (writer == null) {
+            return;
+        }
+        try {
+            queue.put(END);
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return a stream that logs each line written to it, for System.out and System.err
+     */
+    PrintStream printStream(Level level) {
+        return new LogPrintStream(new LineOutputStream(level));
+    }
+
+    /**
+     * @return a java.util.logging handler that passes records to this log, for the messages of sshd-core
+     */
+    Handler julHandler() {
+        return new JulHandler();
+    }
+
+    private void openFile() throws IOException {
+        out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        size = Files.size(file);
+    }
+
+    private void writeRecords(BlockingQueue<Record> queue) {
+        List<Record> batch = new ArrayList<>(MAX_BATCH);
+        long reportedDropped = 0;
+        boolean closing = false;
+        while (!closing) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                closing = true;
+            }
+            queue.drainTo(batch, MAX_BATCH);
+            if (batch.remove(END)) {
+                // Records logged as the log was closed may follow the marker.
+                closing = true;
+            }
+            if (closing) {
+                queue.drainTo(batch);
+            }
+
+            StringBuilder text = new StringBuilder();
+            long dropped = getDropped();
+            if (dropped > reportedDropped) {
+                text.append(new Record(Level.WARN, (dropped - reportedDropped) + " log records dropped", null).format());
+                reportedDropped = dropped;
+            }
+            for (Record record : batch) {
+                text.append(record.format());
+            }
+            batch.clear();
+            write(text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        synchronized (this) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Nothing more can be done
+            }
+        }
+    }
+
+    private void write(byte[] bytes) {
+        try {
+            if (maxSize > 0 && size > 0 && size + bytes.length > maxSize) {
+                rotate();
+            }
+            out.write(bytes);
+            out.flush();
+            size += bytes.length;
+        } catch (IOException e) {
+            console.println("Failed to write " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        if (files == 0) {
+            Files.deleteIfExists(file);
+        }
+        for (int i = files - 1; i >= 0; i--) {
+            Path from = (i == 0 ? file : Paths.get(file + "." + i));
+            try {
+                Files.move(from, Paths.get(file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            } catch (NoSuchFileException e) {
+                // Not rotated that far yet
+            }
+        }
+        openFile();
+    }
+
+    private static class Record {
+        private final long time = System.currentTimeMillis();
+        private final String thread = Thread.currentThread().getName();
+        private final Level level;
+        private final String message;
+        private final Throwable failure;
+
+        Record(Level level, String message, Throwable failure) {
+            this.level = level;
+            this.message = message;
+            this.failure = failure;
+        }
+
+        String format() {
+            StringWriter text = new StringWriter();
+            text.append(TIME_FORMAT.format(Instant.ofEpochMilli(time)))
+                    .append(' ').append(level.name())
+                    .append(" [").append(thread).append("] ")
+                    .append(message).append(System.lineSeparator());
+            if (failure != null) {
+                failure.printStackTrace(new PrintWriter(text, true));
+            }
+            return text.toString();
+        }
+    }
+
+    private static class LogPrintStream extends PrintStream {
+        LogPrintStream(OutputStream out) {
+            super(out, true);
+        }
+    }
+
+    /**
+     * Buffers the bytes written to it, and logs them a line at a time.
+     */
+    private class LineOutputStream extends OutputStream {
+        private final Level level;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LineOutputStream(Level level) {
+            this.level = level;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (b == '\n') {
+                flushLine();
+            } else if (b != '\r') {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        private void flushLine() {
+            log(level, new String(line.toByteArray(), StandardCharsets.UTF_8), null);
+            line.reset();
+        }
+    }
+
+    private class JulHandler extends Handler {
+        private final SimpleFormatter formatter = new SimpleFormatter();
+
+        @Override
+        public void publish(LogRecord record) {
+            int value = record.getLevel().intValue();
+            Level level = (value >= java.util.logging.Level.SEVERE.intValue() ? Level.ERROR :
+                    value >= java.util.logging.Level.WARNING.intValue() ? Level.WARN :
+                    value >= java.util.logging.Level.INFO.intValue() ? Level.INFO : Level.DEBUG);
+            String loggerName = record.getLoggerName();
+            String source = (loggerName == null ? "" : loggerName.substring(loggerName.lastIndexOf('.') + 1) + ": ");
+            log(level, source + formatter.formatMessage(record), record.getThrown());
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package org.rowland.jinix.sshd;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server wide sshd metrics: session and tunnel counts, admission control rejections, I/O totals, and latency
+ * histograms for session setup, tunnel connect and relay, and for every kind of remote call made to the Jinix
+ * servers. Once registered, the server totals, each histogram, and each open session and tunnel are published as
+ * MBeans in the org.rowland.jinix.sshd domain.
+ */
+class SshdMetrics implements SshdMetricsMXBean {
+
+    private static final String DOMAIN = "org.rowland.jinix.sshd";
+
+    /**
+     * A remote call to time.
+     */
+    @FunctionalInterface
+    interface RemoteCall<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    final LatencyHistogram sessionSetup = new LatencyHistogram();
+    final LatencyHistogram sessionEnvironment = new LatencyHistogram(); // the shell environment setup stage
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder inputWrites = new LongAdder();
+    final LongAdder outputWrites = new LongAdder();
+    final LongAdder outputFlushes = new LongAdder();
+    final LongAdder discardedOutput = new LongAdder();
+    final LatencyHistogram tunnelConnect = new LatencyHistogram();
+    final LatencyHistogram tunnelRelay = new LatencyHistogram();
+    final LongAdder tunnelBytesIn = new LongAdder();
+    final LongAdder tunnelBytesOut = new LongAdder();
+    private final LongAdder sessionSetupFailures = new LongAdder();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder rejectedHandshakes = new LongAdder();
+    private final LongAdder rejectedSetups = new LongAdder();
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicLong totalSessions = new AtomicLong();
+    private final AtomicInteger activeTunnels = new AtomicInteger();
+    private final AtomicLong totalTunnels = new AtomicLong();
+    private final LongAdder tunnelFailures = new LongAdder();
+    private final LongAdder clientAliveTimeouts = new LongAdder();
+    private final LongAdder reapedSessions = new LongAdder();
+    private final LongAdder reapedTerminals = new LongAdder();
+    private final LongAdder reapedPumps = new LongAdder();
+    private final LongAdder killedShells = new LongAdder();
+    private final LongAdder outputThrottles = new LongAdder();
+    private final Map<String, LatencyHistogram> remoteCalls = new ConcurrentHashMap<>();
+
+    private volatile MBeanServer mbeanServer;
+
+    /**
+     * Register this object, and every MBean created from now on, with the platform MBean server.
+     */
+    void register() throws JMException {
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        mbeanServer.registerMBean(this, new ObjectName(DOMAIN + ":type=Server"));
+        mbeanServer.registerMBean(sessionSetup, new ObjectName(DOMAIN + ":type=SessionSetup"));
+        mbeanServer.registerMBean(sessionEnvironment, new ObjectName(DOMAIN + ":type=SessionSetup,stage=environment"));
+        mbeanServer.registerMBean(tunnelConnect, new ObjectName(DOMAIN + ":type=TunnelConnect"));
+        mbeanServer.registerMBean(tunnelRelay, new ObjectName(DOMAIN + ":type=TunnelRelay"));
+        for (Map.Entry<String, LatencyHistogram> remoteCall : remoteCalls.entrySet()) {
+            registerRemoteCall(remoteCall.getKey(), remoteCall.getValue());
+        }
+    }
+
+    /**
+     * @return the latency histogram for the named remote call, for example "TermServer.createTerminal"
+     */
+    LatencyHistogram remoteCall(String name) {
+        LatencyHistogram histogram = remoteCalls.get(name);
+        if (histogram == null) {
+            histogram = remoteCalls.computeIfAbsent(name, n -> {
+                LatencyHistogram h = new LatencyHistogram();
+                registerRemoteCall(n, h);
+                return h;
+            });
+        }
+        return histogram;
+    }
+
+    <T, E extends Exception> T time(String name, RemoteCall<T, E> call) throws E {
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } finally {
+            remoteCall(name).record(System.nanoTime() - start);
+        }
+    }
+
+    SessionMetrics openSession(String description) {
+        activeSessions.incrementAndGet();
+        SessionMetrics session = new SessionMetrics(this, totalSessions.incrementAndGet(), description);
+        register(session, sessionName(session));
+        return session;
+    }
+
+    void closeSession(SessionMetrics session) {
+        activeSessions.decrementAndGet();
+        unregister(sessionName(session));
+    }
+
+    TunnelMetrics openTunnel(String description) {
+        activeTunnels.incrementAndGet();
+        return new TunnelMetrics(this, totalTunnels.incrementAndGet(), description);
+    }
+
+    /**
+     * Publish a tunnel once its connection is set up. Tunnels that fail to connect are only counted.
+     */
+    void tunnelConnected(TunnelMetrics tunnel, String description) {
+        tunnel.connected(description);
+        register(tunnel, tunnelName(tunnel));
+    }
+
+    void tunnelFailed() {
+        tunnelFailures.increment();
+    }
+
+    void closeTunnel(TunnelMetrics tunnel) {
+        activeTunnels.decrementAndGet();
+        unregister(tunnelName(tunnel));
+    }
+
+    void sessionSetupFailed() {
+        sessionSetupFailures.increment();
+    }
+
+    void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    void handshakeRejected() {
+        rejectedHandshakes.increment();
+    }
+
+    void setupRejected() {
+        rejectedSetups.increment();
+    }
+
+    void clientAliveTimeout() {
+        clientAliveTimeouts.increment();
+    }
+
+    void sessionReaped() {
+        reapedSessions.increment();
+    }
+
+    void terminalReaped() {
+        reapedTerminals.increment();
+    }
+
+    void pumpReaped() {
+        reapedPumps.increment();
+    }
+
+    void shellKilled() {
+        killedShells.increment();
+    }
+
+    void outputThrottled() {
+        outputThrottles.increment();
+    }
+
+    /**
+     * @return a one line summary of the server counters and of every remote call histogram, for the sshd log
+     */
+    String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("sessions=").append(getActiveSessions())
+                .append(" total=").append(getTotalSessions())
+                .append(" setupFailures=").append(getSessionSetupFailures())
+                .append(" rejected[connections=").append(getRejectedConnections())
+                .append(" handshakes=").append(getRejectedHandshakes())
+                .append(" setups=").append(getRejectedSetups()).append(']')
+                .append(" bytesIn=").append(getBytesIn())
+                .append(" bytesOut=").append(getBytesOut())
+                .append(" outputWrites=").append(getOutputWrites())
+                .append(" outputFlushes=").append(getOutputFlushes())
+                .append(" outputThrottles=").append(getOutputThrottles())
+                .append(" discardedOutput=").append(getDiscardedOutput())
+                .append(" threads=").append(getThreadCount())
+                .append(" logDropped=").append(getDroppedLogRecords())
+                .append(" aliveTimeouts=").append(getClientAliveTimeouts())
+                .append(" reaped[sessions=").append(getReapedSessions())
+                .append(" terminals=").append(getReapedTerminals())
+                .append(" pumps=").append(getReapedPumps())
+                .append(" killedShells=").append(getKilledShells()).append(']')
+                .append(" setup[").append(sessionSetup.summary()).append(']')
+                .append(" environment[").append(sessionEnvironment.summary()).append(']')
+                .append(" tunnels=").append(getActiveTunnels())
+                .append(" total=").append(getTotalTunnels())
+                .append(" failures=").append(getTunnelFailures())
+                .append(" tunnelBytesIn=").append(getTunnelBytesIn())
+                .append(" tunnelBytesOut=").append(getTunnelBytesOut())
+                .append(" tunnelConnect[").append(tunnelConnect.summary()).append(']')
+                .append(" tunnelRelay[").append(tunnelRelay.summary()).append(']');
+        for (Map.Entry<String, LatencyHistogram> remoteCall : new TreeMap<>(remoteCalls).entrySet()) {
+            sb.append(' ').append(remoteCall.getKey()).append('[').append(remoteCall.getValue().summary()).append(']');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    @Override
+    public long getTotalSessions() {
+        return totalSessions.get();
+    }
+
+    @Override
+    public long getSessionSetupFailures() {
+        return sessionSetupFailures.sum();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    @Override
+    public long getRejectedHandshakes() {
+        return rejectedHandshakes.sum();
+    }
+
+    @Override
+    public long getRejectedSetups() {
+        return rejectedSetups.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getInputWrites() {
+        return inputWrites.sum();
+    }
+
+    @Override
+    public long getOutputWrites() {
+        return outputWrites.sum();
+    }
+
+    @Override
+    public long getOutputFlushes() {
+        return outputFlushes.sum();
+    }
+
+    @Override
+    public long getOutputThrottles() {
+        return outputThrottles.sum();
+    }
+
+    @Override
+    public long getDiscardedOutput() {
+        return discardedOutput.sum();
+    }
+
+    @Override
+    public int getActiveTunnels() {
+        return activeTunnels.get();
+    }
+
+    @Override
+    public long getTotalTunnels() {
+        return totalTunnels.get();
+    }
+
+    @Override
+    public long getTunnelFailures() {
+        return tunnelFailures.sum();
+    }
+
+    @Override
+    public long getTunnelBytesIn() {
+        return tunnelBytesIn.sum();
+    }
+
+    @Override
+    public long getTunnelBytesOut() {
+        return tunnelBytesOut.sum();
+    }
+
+    @Override
+    public long getDroppedLogRecords() {
+        return Sshd.log.getDropped();
+    }
+
+    @Override
+    public long getClientAliveTimeouts() {
+        return clientAliveTimeouts.sum();
+    }
+
+    @Override
+    public long getReapedSessions() {
+        return reapedSessions.sum();
+    }
+
+    @Override
+    public long getReapedTerminals() {
+        return reapedTerminals.sum();
+    }
+
+    @Override
+    public long getReapedPumps() {
+        return reapedPumps.sum();
+    }
+
+    @Override
+    public long getKilledShells() {
+        return killedShells.sum();
+    }
+
+    @Override
+    public int getThreadCount() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    private void registerRemoteCall(String name, LatencyHistogram histogram) {
+        register(histogram, DOMAIN + ":type=RemoteCall,name=" + ObjectName.quote(name));
+    }
+
+    private static String sessionName(SessionMetrics session) {
+        return DOMAIN + ":type=Session,id=" + session.getId();
+    }
+
+    private static String tunnelName(TunnelMetrics tunnel) {
+        return DOMAIN + ":type=Tunnel,id=" + tunnel.getId();
+    }
+
+    private void register(Object mbean, String name) {
+        MBeanServer mbeanServer = this.mbeanServer;
+        if (mbeanServer == null) {
+            return;
+        }
+        try {
+            mbeanServer.registerMBean(mbean, new ObjectName(name));
+        } catch (JMException e) {
+            Sshd.log.warn("Failed to register MBean " + name + ": " + e.getMessage());
+        }
+    }
+
+    private void unregister(String name) {
+        MBeanServer mbeanServer = this.mbeanServer;
+        if (mbeanServer == null) {
+            return;
+        }
+        try {
+            mbeanServer.unregisterMBean(new ObjectName(name));
+        } catch (JMException e) {
+            // Already gone
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.rowland.jinix.sshd;
+
+/**
+ * JMX view of the server wide sshd counters. The session setup and tunnel latency histograms are published
+ * separately.
+ */
+public interface SshdMetricsMXBean {
+
+    int getActiveSessions();
+
+    long getTotalSessions();
+
+    long getSessionSetupFailures();
+
+    long getRejectedConnections();
+
+    long getRejectedHandshakes();
+
+    long getRejectedSetups();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getInputWrites();
+
+    long getOutputWrites();
+
+    long getOutputFlushes();
+
+    long getOutputThrottles();
+
+    long getDiscardedOutput();
+
+    int getActiveTunnels();
+
+    long getTotalTunnels();
+
+    long getTunnelFailures();
+
+    long getTunnelBytesIn();
+
+    long getTunnelBytesOut();
+
+    long getDroppedLogRecords();
+
+    long getClientAliveTimeouts();
+
+    long getReapedSessions();
+
+    long getReapedTerminals();
+
+    long getReapedPumps();
+
+    long getKilledShells();
+
+    int getThreadCount();
+}
@@ -0,0 +1,74 @@
+package org.rowland.jinix.sshd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * A SessionIoEngine.Pump that copies one stream to another in blocks, flushing the sink after every block. Used
+ * for non-interactive channels, where there is no keystroke echo to optimize for.
+ */
+class StreamPump implements SessionIoEngine.Pump {
+
+    private final String name;
+    private final InputStream source;
+    private final OutputStream sink;
+    private final byte[] buffer;
+    private final IntConsumer onTransfer;
+    private final BooleanSupplier sourceEnded;
+    private final Consumer<IOException> onFinished;
+
+    /**
+     * @param onTransfer called with the size of each block moved
+     * @param sourceEnded whether the source has ended, for a source that may report nothing available rather than
+     *                    end of stream
+     * @param onFinished called once, with the failure if any, when the pump stops
+     */
+    StreamPump(String name, InputStream source, OutputStream sink, int bufferSize,
+               IntConsumer onTransfer, BooleanSupplier sourceEnded, Consumer<IOException> onFinished) {
+        this.name = name;
+        this.source = source;
+        this.sink = sink;
+        this.buffer = new byte[bufferSize];
+        this.onTransfer = onTransfer;
+        this.sourceEnded = sourceEnded;
+        this.onFinished = onFinished;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean transfer() throws IOException {
+        int n = source.read(buffer, 0, buffer.length);
+        if (n < 0) {
+            return false;
+        }
+        if (n > 0) {
+            sink.write(buffer, 0, n);
+            sink.flush();
+            onTransfer.accept(n);
+        }
+        return true;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return source.available();
+    }
+
+    @Override
+    public boolean hasEnded() throws IOException {
+        return source.available() <= 0 && sourceEnded.getAsBoolean();
+    }
+
+    @Override
+    public void finished(IOException failure) {
+        onFinished.accept(failure);
+    }
+}
@@ -0,0 +1,172 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.sshd.common.channel.PtyMode;
+import org.rowland.jinix.terminal.*;
+
+import java.rmi.RemoteException;
+import java.util.*;
+
+/**
+ * Ready made TerminalAttributes for new terminals, keyed by the client's pty modes. Nearly every client sends one
+ * of a handful of mode sets, so after the first session with a given set, a new terminal is set up with a single
+ * setTerminalAttributes call instead of a get, the mode mapping, and a set.
+ *
+ * A template is shared by every session that uses it, and must never be modified once cached.
+ */
+class TerminalAttributeTemplates {
+
+    private static final int MAX_TEMPLATES = 64;
+
+    /**
+     * The modes that affect the Jinix terminal attributes. Only these are part of the cache key, so that clients
+     * that differ only in, for example, their line speed share a template.
+     */
+    private static final Set<PtyMode> MAPPED_MODES = Collections.unmodifiableSet(EnumSet.of(
+            PtyMode.INLCR, PtyMode.IGNCR, PtyMode.ICRNL, PtyMode.IUCLC, PtyMode.IXON, PtyMode.IXANY, PtyMode.IXOFF,
+            PtyMode.IMAXBEL,
+            PtyMode.OPOST, PtyMode.OLCUC, PtyMode.ONLCR, PtyMode.OCRNL, PtyMode.ONOCR, PtyMode.ONLRET,
+            PtyMode.ISIG, PtyMode.ICANON, PtyMode.XCASE, PtyMode.ECHO, PtyMode.TOSTOP,
+            PtyMode.VINTR, PtyMode.VQUIT, PtyMode.VERASE, PtyMode.VKILL, PtyMode.VEOF, PtyMode.VEOL, PtyMode.VSUSP,
+            PtyMode.VSTOP, PtyMode.VSTART));
+
+    private final Map<Map<PtyMode, Integer>, TerminalAttributes> templates =
+            new LinkedHashMap<Map<PtyMode, Integer>, TerminalAttributes>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Map<PtyMode, Integer>, TerminalAttributes> eldest) {
+                    return size() > MAX_TEMPLATES;
+                }
+            };
+
+    /**
+     * Get the attributes for a newly created terminal with the given (already resolved) pty modes. On a cache miss
+     * the default attributes are read from the new terminal.
+     */
+    TerminalAttributes getAttributes(Map<PtyMode, Integer> modes, short newTerminalId) throws RemoteException {
+        Map<PtyMode, Integer> key = new EnumMap<>(PtyMode.class);
+        for (Map.Entry<PtyMode, Integer> mode : modes.entrySet()) {
+            if (MAPPED_MODES.contains(mode.getKey())) {
+                key.put(mode.getKey(), mode.getValue());
+            }
+        }
+
+        synchronized (templates) {
+            TerminalAttributes termAttrs = templates.get(key);
+            if (termAttrs != null) {
+                return termAttrs;
+            }
+        }
+
+        TerminalAttributes termAttrs = Sshd.terminalServer.getTerminalAttributes(newTerminalId);
+        applyModes(key, termAttrs);
+        synchronized (templates) {
+            templates.put(key, termAttrs);
+        }
+        return termAttrs;
+    }
+
+    static void applyModes(Map<PtyMode, Integer> modes, TerminalAttributes termAttrs) {
+        mapToJinixInputModes(modes, termAttrs.inputModes);
+        mapToJinixOutputModes(modes, termAttrs.outputModes);
+        mapToJinixLocalModes(modes, termAttrs.localModes);
+        mapJinixSpecialCharacters(modes, termAttrs.specialCharacterMap);
+    }
+
+    static void mapToJinixInputModes(Map<PtyMode, Integer> ptyModes, Set<InputMode> termInputAttrs) {
+
+        if (ptyModes.containsKey(PtyMode.INLCR)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.INLCR)) termInputAttrs.add(InputMode.INLCR);
+            else termInputAttrs.remove(InputMode.INLCR);
+        }
+        if (ptyModes.containsKey(PtyMode.IGNCR)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.IGNCR)) termInputAttrs.add(InputMode.IGNCR);
+            else termInputAttrs.remove(InputMode.IGNCR);
+        }
+        if (ptyModes.containsKey(PtyMode.ICRNL)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.ICRNL)) termInputAttrs.add(InputMode.ICRNL);
+            else termInputAttrs.remove(InputMode.ICRNL);
+        }
+        if (ptyModes.containsKey(PtyMode.IUCLC)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.IUCLC)) termInputAttrs.add(InputMode.IUCLC);
+            else termInputAttrs.remove(InputMode.IUCLC);
+        }
+        if (ptyModes.containsKey(PtyMode.IXON)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.IXON)) termInputAttrs.add(InputMode.IXON);
+            else termInputAttrs.remove(InputMode.IXON);
+        }
+        if (ptyModes.containsKey(PtyMode.IXANY)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.IXANY)) termInputAttrs.add(InputMode.IXANY);
+            else termInputAttrs.remove(InputMode.IXANY);
+        }
+        if (ptyModes.containsKey(PtyMode.IXOFF)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.IXOFF)) termInputAttrs.add(InputMode.IXOFF);
+            else termInputAttrs.remove(InputMode.IXOFF);
+        }
+        if (ptyModes.containsKey(PtyMode.IMAXBEL)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.IMAXBEL)) termInputAttrs.add(InputMode.IMAXBEL);
+            else termInputAttrs.remove(InputMode.IMAXBEL);
+        }
+    }
+
+    static void mapToJinixOutputModes(Map<PtyMode, Integer> ptyModes, Set<OutputMode> termOutputAttrs) {
+
+        if (ptyModes.containsKey(PtyMode.OPOST)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.OPOST)) termOutputAttrs.add(OutputMode.OPOST);
+            else termOutputAttrs.remove(OutputMode.OPOST);
+        }
+        if (ptyModes.containsKey(PtyMode.OLCUC)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.OLCUC)) termOutputAttrs.add(OutputMode.OLCUC);
+            else termOutputAttrs.remove(OutputMode.OLCUC);
+        }
+        if (ptyModes.containsKey(PtyMode.ONLCR)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.ONLCR)) termOutputAttrs.add(OutputMode.ONLCR);
+            else termOutputAttrs.remove(OutputMode.ONLCR);
+        }
+        if (ptyModes.containsKey(PtyMode.OCRNL)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.OCRNL)) termOutputAttrs.add(OutputMode.OCRNL);
+            else termOutputAttrs.remove(OutputMode.OCRNL);
+        }
+        if (ptyModes.containsKey(PtyMode.ONOCR)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.ONOCR)) termOutputAttrs.add(OutputMode.ONOCR);
+            else termOutputAttrs.remove(OutputMode.ONOCR);
+        }
+        if (ptyModes.containsKey(PtyMode.ONLRET)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.ONLRET)) termOutputAttrs.add(OutputMode.ONLRET);
+            else termOutputAttrs.remove(OutputMode.ONLRET);
+        }
+    }
+
+    static void mapToJinixLocalModes(Map<PtyMode, Integer> ptyModes, Set<LocalMode> termLocalAttrs) {
+        if (ptyModes.containsKey(PtyMode.ISIG)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.ISIG)) termLocalAttrs.add(LocalMode.ISIG);
+            else termLocalAttrs.remove(LocalMode.ISIG);
+        }
+        if (ptyModes.containsKey(PtyMode.ICANON)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.ICANON)) termLocalAttrs.add(LocalMode.ICANON);
+            else termLocalAttrs.remove(LocalMode.ICANON);
+        }
+        if (ptyModes.containsKey(PtyMode.XCASE)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.XCASE)) termLocalAttrs.add(LocalMode.XCASE);
+            else termLocalAttrs.remove(LocalMode.XCASE);
+        }
+        if (ptyModes.containsKey(PtyMode.ECHO)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.ECHO)) termLocalAttrs.add(LocalMode.ECHO);
+            else termLocalAttrs.remove(LocalMode.ECHO);
+        }
+        if (ptyModes.containsKey(PtyMode.TOSTOP)) {
+            if (PtyMode.getBooleanSettingValue(ptyModes, PtyMode.TOSTOP)) termLocalAttrs.add(LocalMode.TOSTOP);
+            else termLocalAttrs.remove(LocalMode.TOSTOP);
+        }
+    }
+
+    static void mapJinixSpecialCharacters(Map<PtyMode, Integer> ptyModes, Map<SpecialCharacter, Byte> termAttrsChars) {
+        if (ptyModes.get(PtyMode.VINTR) != null) termAttrsChars.put(SpecialCharacter.VINTR, (byte) (0xff & ptyModes.get(PtyMode.VINTR)));
+        if (ptyModes.get(PtyMode.VQUIT) != null) termAttrsChars.put(SpecialCharacter.VQUIT, (byte) (0xff & ptyModes.get(PtyMode.VQUIT)));
+        if (ptyModes.get(PtyMode.VERASE) != null) termAttrsChars.put(SpecialCharacter.VERASE, (byte) (0xff & ptyModes.get(PtyMode.VERASE)));
+        if (ptyModes.get(PtyMode.VKILL) != null) termAttrsChars.put(SpecialCharacter.VKILL, (byte) (0xff & ptyModes.get(PtyMode.VKILL)));
+        if (ptyModes.get(PtyMode.VEOF) != null) termAttrsChars.put(SpecialCharacter.VEOF, (byte) (0xff & ptyModes.get(PtyMode.VEOF)));
+        if (ptyModes.get(PtyMode.VEOL) != null) termAttrsChars.put(SpecialCharacter.VEOL, (byte) (0xff & ptyModes.get(PtyMode.VEOL)));
+        if (ptyModes.get(PtyMode.VSUSP) != null) termAttrsChars.put(SpecialCharacter.VSUSP, (byte) (0xff & ptyModes.get(PtyMode.VSUSP)));
+        if (ptyModes.get(PtyMode.VSTOP) != null) termAttrsChars.put(SpecialCharacter.VSTOP, (byte) (0xff & ptyModes.get(PtyMode.VSTOP)));
+        if (ptyModes.get(PtyMode.VSTART) != null) termAttrsChars.put(SpecialCharacter.VSTART, (byte) (0xff & ptyModes.get(PtyMode.VSTART)));
+    }
+}
@@ -0,0 +1,18 @@
+package org.rowland.jinix.sshd;
+
+/**
+ * A SessionIoEngine that runs every pump on its own platform thread. This gives the lowest latency, at the cost
+ * of two thread stacks for every open session.
+ */
+class ThreadSessionIoEngine implements SessionIoEngine {
+
+    @Override
+    public void start(Pump pump) {
+        new Thread(() -> SessionIoEngine.run(pump), pump.getName()).start();
+    }
+
+    @Override
+    public void shutdown() {
+        // Pump threads end with their session.
+    }
+}
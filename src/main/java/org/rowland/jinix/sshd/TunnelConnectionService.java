@@ -0,0 +1,147 @@
+package org.rowland.jinix.sshd;
+
+import org.apache.sshd.common.Service;
+import org.apache.sshd.common.SshConstants;
+import org.apache.sshd.common.SshException;
+import org.apache.sshd.common.channel.Channel;
+import org.apache.sshd.common.channel.ChannelListener;
+import org.apache.sshd.common.channel.throttle.ChannelStreamWriter;
+import org.apache.sshd.common.forward.ForwardingTunnelEndpointsProvider;
+import org.apache.sshd.common.io.IoWriteFuture;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.util.ValidateUtils;
+import org.apache.sshd.common.util.buffer.Buffer;
+import org.apache.sshd.server.forward.TcpipServerChannel;
+import org.apache.sshd.server.session.AbstractServerSession;
+import org.apache.sshd.server.session.ServerConnectionService;
+import org.apache.sshd.server.session.ServerConnectionServiceFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The ssh-connection service, with metrics for forwarded TCP connections. sshd relays tunnel data itself, on the
+ * I/O threads, so the metrics are taken where the data passes through the session: data from the client is
+ * counted as it arrives for a tunnel channel, and data to the client is counted, and timed, by a stream writer
+ * installed on the tunnel channel.
+ */
+class TunnelConnectionService extends ServerConnectionService {
+
+    // The command byte, recipient channel and data length in front of the data in a channel data packet
+    private static final int DATA_HEADER_LENGTH = 9;
+
+    private final Map<Integer, TunnelMetrics> tunnels = new ConcurrentHashMap<>();
+
+    TunnelConnectionService(AbstractServerSession session) throws SshException {
+        super(session);
+    }
+
+    @Override
+    public int registerChannel(Channel channel) throws IOException {
+        int id = super.registerChannel(channel);
+        if (channel instanceof ForwardingTunnelEndpointsProvider) {
+            TunnelMetrics tunnel = Sshd.metrics.openTunnel(describe(channel));
+            tunnels.put(id, tunnel);
+            channel.setChannelStreamWriterResolver((c, cmd) -> {
+                ChannelStreamWriter writer = c.getSession().resolveChannelStreamWriter(c, cmd);
+                return (cmd == SshConstants.SSH_MSG_CHANNEL_DATA ? new TunnelWriter(writer, tunnel) : writer);
+            });
+            channel.addChannelListener(new ChannelListener() {
+                @Override
+                public void channelOpenSuccess(Channel channel) {
+                    Sshd.metrics.tunnelConnected(tunnel, describe(channel));
+                }
+            });
+        }
+        return id;
+    }
+
+    @Override
+    public void unregisterChannel(Channel channel) {
+        super.unregisterChannel(channel);
+        TunnelMetrics tunnel = tunnels.remove(channel.getId());
+        if (tunnel != null) {
+            Sshd.metrics.closeTunnel(tunnel);
+            if (tunnel.isConnected()) {
+                Sshd.log.info("Tunnel closed: " + tunnel.summary());
+            } else {
+                Sshd.metrics.tunnelFailed();
+                Sshd.log.info("Tunnel failed: " + describe(channel));
+            }
+        }
+    }
+
+    @Override
+    public void channelData(Buffer buffer) throws IOException {
+        if (!tunnels.isEmpty()) {
+            int rpos = buffer.rpos();
+            TunnelMetrics tunnel = tunnels.get(buffer.getInt());
+            if (tunnel != null) {
+                tunnel.input((int) buffer.getUInt());
+            }
+            buffer.rpos(rpos);
+        }
+        super.channelData(buffer);
+    }
+
+    /**
+     * A local forward is described by its target. A remote forward is described by the connection's origin and
+     * the forwarded port it connected to.
+     */
+    private String describe(Channel channel) {
+        ForwardingTunnelEndpointsProvider endpoints = (ForwardingTunnelEndpointsProvider) channel;
+        String user = getSession().getUsername() + "@" + getSession().getClientAddress();
+        if (channel instanceof TcpipServerChannel) {
+            return "local forward for " + user + " to " + endpoints.getTunnelExit();
+        }
+        return "remote forward for " + user + " from " + endpoints.getTunnelEntrance() + " via " +
+                endpoints.getTunnelExit();
+    }
+
+    /**
+     * Counts the data written to the client on a tunnel channel, and times each write until it completes.
+     */
+    private static class TunnelWriter implements ChannelStreamWriter {
+        private final ChannelStreamWriter writer;
+        private final TunnelMetrics tunnel;
+
+        TunnelWriter(ChannelStreamWriter writer, TunnelMetrics tunnel) {
+            this.writer = writer;
+            this.tunnel = tunnel;
+        }
+
+        @Override
+        public IoWriteFuture writeData(Buffer buffer) throws IOException {
+            int bytes = buffer.available() - DATA_HEADER_LENGTH;
+            long start = System.nanoTime();
+            IoWriteFuture future = writer.writeData(buffer);
+            future.addListener(f -> tunnel.output(bytes, System.nanoTime() - start));
+            return future;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return writer.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * Creates a TunnelConnectionService for each server session, in place of sshd's ServerConnectionServiceFactory.
+     */
+    static class Factory extends ServerConnectionServiceFactory {
+        @Override
+        public Service create(Session session) throws IOException {
+            AbstractServerSession serverSession = ValidateUtils.checkInstanceOf(session, AbstractServerSession.class,
+                    "Not a server session: %s", session);
+            TunnelConnectionService service = new TunnelConnectionService(serverSession);
+            service.addPortForwardingEventListenerManager(this);
+            return service;
+        }
+    }
+}
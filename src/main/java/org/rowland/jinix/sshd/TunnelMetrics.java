@@ -0,0 +1,110 @@
+package org.rowland.jinix.sshd;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one forwarded TCP connection, an ssh -L connection to a target or an ssh -R connection accepted by
+ * a forwarded listener. Bytes in are bytes from the client, bytes out are bytes to the client. The relay latency
+ * is the time from handing a block of tunnel data to the ssh session until it has been written to the client's
+ * socket, so it grows when the client, or the network, falls behind. Every update is also added to the server
+ * wide totals.
+ */
+class TunnelMetrics implements TunnelMetricsMXBean {
+
+    private final SshdMetrics server;
+    private final long id;
+    private volatile String description;
+    private final long startTime = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private volatile long connectNanos;
+    private volatile boolean connected;
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LatencyHistogram relay = new LatencyHistogram();
+
+    TunnelMetrics(SshdMetrics server, long id, String description) {
+        this.server = server;
+        this.id = id;
+        this.description = description;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    /**
+     * Record that the connection has been set up at both ends.
+     */
+    void connected(String description) {
+        this.description = description;
+        connectNanos = System.nanoTime() - startNanos;
+        connected = true;
+        server.tunnelConnect.record(connectNanos);
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    void input(int bytes) {
+        bytesIn.add(bytes);
+        server.tunnelBytesIn.add(bytes);
+    }
+
+    void output(int bytes, long relayNanos) {
+        bytesOut.add(bytes);
+        relay.record(relayNanos);
+        server.tunnelBytesOut.add(bytes);
+        server.tunnelRelay.record(relayNanos);
+    }
+
+    /**
+     * @return a one line summary of the connection, for the sshd log
+     */
+    String summary() {
+        return String.format("%s connect=%.3fms in=%d out=%d relay[%s] duration=%ds", description,
+                getConnectMillis(), getBytesIn(), getBytesOut(), relay.summary(),
+                TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime));
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public long getStartTime() {
+        return startTime;
+    }
+
+    @Override
+    public double getConnectMillis() {
+        return TimeUnit.NANOSECONDS.toMicros(connectNanos) / 1000.0;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getRelayMeanMillis() {
+        return relay.getMeanMillis();
+    }
+
+    @Override
+    public double getRelay99thPercentileMillis() {
+        return relay.get99thPercentileMillis();
+    }
+
+    @Override
+    public double getRelayMaxMillis() {
+        return relay.getMaxMillis();
+    }
+}
@@ -0,0 +1,23 @@
+package org.rowland.jinix.sshd;
+
+/**
+ * JMX view of the counters of one forwarded TCP connection.
+ */
+public interface TunnelMetricsMXBean {
+
+    String getDescription();
+
+    long getStartTime();
+
+    double getConnectMillis();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getRelayMeanMillis();
+
+    double getRelay99thPercentileMillis();
+
+    double getRelayMaxMillis();
+}
@@ -0,0 +1,19 @@
+package org.rowland.jinix.sshd;
+
+/**
+ * A SessionIoEngine that runs every pump on its own virtual thread. Pumps block exactly as they do on platform
+ * threads, but an idle session only holds two small heap allocated stacks. This class is only built by the
+ * virtual-threads profile, which compiles for Java 21.
+ */
+class VirtualThreadSessionIoEngine implements SessionIoEngine {
+
+    @Override
+    public void start(Pump pump) {
+        Thread.ofVirtual().name(pump.getName()).start(() -> SessionIoEngine.run(pump));
+    }
+
+    @Override
+    public void shutdown() {
+        // Pump threads end with their session.
+    }
+}